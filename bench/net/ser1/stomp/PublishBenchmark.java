@@ -0,0 +1,107 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how intra-VM publish throughput scales with publishing threads.
+ *
+ * Each of N threads publishes to a destination of its own, through its own
+ * intra-VM client, for N = 1, 2, 4, ... up to the number of processors.
+ * Every destination has the same number of subscribers.  Since publishers
+ * share no destination, throughput should rise with N until the cores run
+ * out.
+ *
+ * Usage: java net.ser1.stomp.PublishBenchmark [messages per thread]
+ *  [subscribers per destination] [most threads]
+ */
+public class PublishBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int messages    = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int maxThreads  = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Server server = new Server();
+        final LongAdder delivered = new LongAdder();
+        Listener counter = new Listener()
+        {
+            public void message(Map<String, String> headers, String body)
+            {
+                delivered.increment();
+            }
+        };
+        for (int d = 0; d < maxThreads; d++)
+            for (int s = 0; s < subscribers; s++)
+                server.getClient().subscribe(destination(d), counter);
+
+        // Once through untimed, so that the JIT has done its work
+        run(server, Math.min(maxThreads, 2), messages / 10, subscribers, delivered);
+
+        System.out.println("threads  publishes/s  per thread");
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            double rate = run(server, threads, messages, subscribers, delivered);
+            System.out.printf("%7d  %11.0f  %10.0f%n", threads, rate, rate / threads);
+            if (threads < maxThreads && threads * 2 > maxThreads)
+                threads = maxThreads / 2;
+        }
+
+        server.stop();
+    }
+
+    /**
+     * Publishes from the given number of threads at once, and waits for
+     * every message to reach every subscriber.
+     *
+     * @return publishes per second, across all threads
+     */
+    private static double run(final Server server, int threads, final int messages, int subscribers,
+                              LongAdder delivered) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] publishers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final String destination = destination(t);
+            final Stomp client = server.getClient();
+            publishers[t] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < messages; i++)
+                        client.send(destination, "x");
+                }
+            }, "Publisher-" + t);
+            publishers[t].start();
+        }
+
+        delivered.reset();
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread t : publishers)
+            t.join();
+
+        long expected = (long) threads * messages * subscribers;
+        while (delivered.sum() < expected)
+            Thread.sleep(1);
+        long took = System.nanoTime() - began;
+
+        return (double) threads * messages * 1e9 / took;
+    }
+
+    private static String destination(int n)
+    {
+        return "/bench/" + n;
+    }
+}
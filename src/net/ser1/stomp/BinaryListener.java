@@ -0,0 +1,28 @@
+package net.ser1.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A Listener that takes message bodies as the bytes they were sent as,
+ * without decoding them as text, so that binary payloads arrive intact.
+ *
+ * Example:
+ * <pre>
+ *     c.subscribe( "/images", (BinaryListener) (headers, body) -> { ... } );
+ * </pre>
+ *
+ * A message that is only available as text is encoded as UTF-8.
+ */
+public interface BinaryListener extends Listener
+{
+    /**
+     * @param body The body, or null if the message had none
+     */
+    public void message(Map<String, String> headers, byte[] body);
+
+    default public void message(Map<String, String> headers, String body)
+    {
+        message(headers, body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,52 @@
+package net.ser1.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Converts message bodies between the bytes that go over the wire and the
+ * text that Listeners take.  Bodies are carried as bytes, and only decoded
+ * when something asks for text.
+ */
+final class Bodies
+{
+    private Bodies()
+    {
+    }
+
+    static String text(byte[] body)
+    {
+        return body == null ? null : new String(body, StandardCharsets.UTF_8);
+    }
+
+    static byte[] bytes(String body)
+    {
+        return body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The remaining bytes of a buffer, leaving its position alone.
+     */
+    static byte[] bytes(ByteBuffer body)
+    {
+        if (body == null)
+            return null;
+
+        byte[] b = new byte[body.remaining()];
+        body.duplicate().get(b);
+        return b;
+    }
+
+    /**
+     * Hands a message to a listener, as bytes if it takes them and as text
+     * otherwise.
+     */
+    static void message(Listener listener, Map<String, String> headers, byte[] body)
+    {
+        if (listener instanceof BinaryListener)
+            ((BinaryListener) listener).message(headers, body);
+        else
+            listener.message(headers, text(body));
+    }
+}
@@ -3,9 +3,16 @@ package net.ser1.stomp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import javax.security.auth.login.LoginException;
 
 /**
@@ -21,17 +28,243 @@ import javax.security.auth.login.LoginException;
  *     c.disconnect();
  * </pre>
  *
+ * Sending is pipelined: send() and the other methods that transmit frames
+ * encode the frame on the calling thread and queue it without taking a
+ * lock, and one writer thread per client batches queued frames into as few
+ * socket writes as it can.  How large a batch may grow, how long a frame
+ * may wait for others to join it, and how much may be queued before senders
+ * wait, are set with Client.Options.
+ *
+ * A client can be made to reconnect, with Options.setReconnect(), when its
+ * connection drops.  It tries again after a delay that doubles with every
+ * failure; once the server accepts it, it makes all its subscriptions again
+ * and then sends whatever was sent while it was disconnected, up to a
+ * limit.  Frames that were in flight when the connection dropped may be
+ * lost; ask for receipts for those that matter.  Receipts waited on when
+ * the connection drops fail.
+ *
  * @see Stomp
  */
 public class Client extends Stomp implements MessageReceiver
 {
-    private Thread       listener;
-    private OutputStream output;
-    private InputStream  input;
-    private Socket       socket;
+    private final InetSocketAddress   address;
+    private final Executor            readers;
+    private final Options             options;
+    private final Map<String, String> connectHeader;
+    private volatile Connection       connection;
+
+    /**
+     * Completed when the server accepts the first connection, or failed
+     * with a LoginException if it refuses it or does not answer in time.
+     */
+    private final CompletableFuture<Void> handshake = new CompletableFuture<>();
 
     private String clientId;
 
+    /**
+     * True once a server has agreed to speak 1.2, so that headers are
+     * escaped.  Frames kept while reconnecting are encoded for the last
+     * server, which is the one the client reconnects to.
+     */
+    private volatile boolean escapes;
+
+    /**
+     * While reconnecting: the frames sent meanwhile, and the SUBSCRIBE
+     * headers of every subscription, to send on the next connection.  The
+     * lock on unsent also guards the state below.
+     */
+    private final ArrayDeque<EncodedFrame>         unsent        = new ArrayDeque<>();
+    private final Map<String, Map<String, String>> subscriptions = new LinkedHashMap<>();
+    private volatile boolean                       live;
+    private volatile boolean                       closing;
+    private volatile int                           attempts;
+    private volatile Thread                        reconnector;
+
+    /**
+     * Socket and publishing settings for a Client.  Setters return the
+     * options, so they can be chained:
+     * <pre>
+     *     new Client.Options().setMaxLatency( 2 ).setSendBufferSize( 256 * 1024 )
+     * </pre>
+     */
+    public static class Options
+    {
+        private boolean  tcpNoDelay = true;
+        private int      sendBufferSize;
+        private int      receiveBufferSize;
+        private int      maxBatchBytes = 64 * 1024;
+        private long     maxLatency;
+        private long     maxQueuedBytes = 4 * 1024 * 1024;
+        private Executor listenerExecutor = listenerThreads();
+        private long     reconnectDelay;
+        private long     maxReconnectDelay;
+        private int      reconnectBuffer = 1000;
+        private long     connectTimeout = 2000;
+        private int      heartBeatSend = 10000;
+        private int      heartBeatReceive = 60000;
+
+        /**
+         * Whether Nagle's algorithm is disabled on the socket.  On by
+         * default, since the client does its own batching.
+         */
+        public Options setTcpNoDelay(boolean tcpNoDelay)
+        {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * The socket's send buffer size in bytes, or 0, the default, to
+         * leave it to the operating system.
+         */
+        public Options setSendBufferSize(int bytes)
+        {
+            this.sendBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * The socket's receive buffer size in bytes, or 0, the default, to
+         * leave it to the operating system.
+         */
+        public Options setReceiveBufferSize(int bytes)
+        {
+            this.receiveBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * The most bytes written to the socket at once.  Frames larger than
+         * this are written on their own.  64k by default.
+         */
+        public Options setMaxBatchBytes(int bytes)
+        {
+            if (bytes <= 0)
+                throw new IllegalArgumentException("maxBatchBytes must be positive: " + bytes);
+            this.maxBatchBytes = bytes;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, a queued frame may wait for more frames
+         * to fill its batch.  With the default, 0, a batch is written as soon
+         * as there is nothing more queued, so frames are only batched when
+         * they are sent faster than the socket takes them.
+         */
+        public Options setMaxLatency(long millis)
+        {
+            if (millis < 0)
+                throw new IllegalArgumentException("maxLatency must not be negative: " + millis);
+            this.maxLatency = millis;
+            return this;
+        }
+
+        /**
+         * How many bytes of frames may wait for the writer before sending
+         * blocks until it catches up.  4M by default.
+         */
+        public Options setMaxQueuedBytes(long bytes)
+        {
+            if (bytes <= 0)
+                throw new IllegalArgumentException("maxQueuedBytes must be positive: " + bytes);
+            this.maxQueuedBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Where the client's listeners are called; see
+         * Stomp.setListenerExecutor().  Stomp.listenerThreads() by default,
+         * so that the connection keeps being read while listeners work.
+         */
+        public Options setListenerExecutor(Executor executor)
+        {
+            this.listenerExecutor = executor;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, opening a connection and having the
+         * server accept it may take before it is given up on.  2 seconds by
+         * default.
+         */
+        public Options setConnectTimeout(long millis)
+        {
+            if (millis <= 0)
+                throw new IllegalArgumentException("connectTimeout must be positive: " + millis);
+            this.connectTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Makes the client reconnect when its connection drops, waiting
+         * initialDelay milliseconds before the first try and twice as long
+         * after each failure, up to maxDelay.  An initialDelay of 0, the
+         * default, turns reconnecting off.
+         */
+        public Options setReconnect(long initialDelay, long maxDelay)
+        {
+            if (initialDelay < 0 || maxDelay < initialDelay)
+                throw new IllegalArgumentException("bad reconnect delays: " + initialDelay + ", " + maxDelay);
+            this.reconnectDelay    = initialDelay;
+            this.maxReconnectDelay = maxDelay;
+            return this;
+        }
+
+        /**
+         * How many frames sent while reconnecting are kept to send once
+         * connected again.  Beyond this, frames are dropped and an error is
+         * reported.  1000 by default.
+         */
+        public Options setReconnectBuffer(int frames)
+        {
+            if (frames < 0)
+                throw new IllegalArgumentException("reconnectBuffer must not be negative: " + frames);
+            this.reconnectBuffer = frames;
+            return this;
+        }
+
+        /**
+         * The heart-beat periods, in milliseconds, the client offers the
+         * server when it connects.  The periods used are negotiated with
+         * the server, and a heart-beat is only sent after a period in which
+         * nothing else was.  By default the client sends every 10 seconds,
+         * so that the server can tell when the connection has silently
+         * died, and asks for one every 60 seconds.
+         *
+         * @param send The shortest period at which the client will send
+         *  heart-beats, or 0 never to send them
+         * @param receive The period at which the client would like
+         *  heart-beats from the server, or 0 not to check the server
+         */
+        public Options setHeartBeat(int send, int receive)
+        {
+            if (send < 0 || receive < 0)
+                throw new IllegalArgumentException("bad heart-beat periods: " + send + ", " + receive);
+            this.heartBeatSend    = send;
+            this.heartBeatReceive = receive;
+            return this;
+        }
+
+        public boolean  getTcpNoDelay()        { return tcpNoDelay; }
+        public int      getSendBufferSize()    { return sendBufferSize; }
+        public int      getReceiveBufferSize() { return receiveBufferSize; }
+        public int      getMaxBatchBytes()     { return maxBatchBytes; }
+        public long     getMaxLatency()        { return maxLatency; }
+        public long     getMaxQueuedBytes()    { return maxQueuedBytes; }
+        public Executor getListenerExecutor()  { return listenerExecutor; }
+        public long     getReconnectDelay()    { return reconnectDelay; }
+        public long     getMaxReconnectDelay() { return maxReconnectDelay; }
+        public int      getReconnectBuffer()   { return reconnectBuffer; }
+        public long     getConnectTimeout()    { return connectTimeout; }
+        public int      getHeartBeatSend()     { return heartBeatSend; }
+        public int      getHeartBeatReceive()  { return heartBeatReceive; }
+    }
+
+    private volatile boolean            heard = true;
+    private volatile boolean            sent;
+    private volatile TimerWheel.Timeout sendTimer;
+    private volatile TimerWheel.Timeout receiveTimer;
+
     /**
      * Connects to a server
      *
@@ -48,50 +281,122 @@ public class Client extends Stomp implements MessageReceiver
      */
     public Client(String server, int port, String login, String pass, String clientId) throws IOException, LoginException
     {
-        socket = new Socket(server, port);
-        input  = socket.getInputStream();
-        output = socket.getOutputStream();
+        this(server, port, login, pass, clientId, Receiver.platformThreads());
+    }
+
+    /**
+     * Connects to a server, reading from it on a thread supplied by the
+     * given executor. Pass Receiver.virtualThreads() to read on a virtual
+     * thread.
+     *
+     * @see Stomp
+     * @param server The IP or host name of the server
+     * @param port The port the server is listening on
+     * @param readers Runs this client's Receiver
+     */
+    public Client(String server, int port, String login, String pass, String clientId, Executor readers) throws IOException, LoginException
+    {
+        this(server, port, login, pass, clientId, readers, new Options());
+    }
 
-        listener = new Receiver(this, input);
-        listener.start();
+    /**
+     * Connects to a server, with the given socket and publishing settings.
+     * Returns as soon as the server accepts the connection.
+     *
+     * @see Stomp
+     * @param server The IP or host name of the server
+     * @param port The port the server is listening on
+     * @param readers Runs this client's Receiver
+     * @param options Socket, publishing and reconnection settings
+     * @throws LoginException if the server refuses the connection, or does
+     *  not accept it within the options' connect timeout
+     */
+    public Client(String server, int port, String login, String pass, String clientId, Executor readers, Options options) throws IOException, LoginException
+    {
+        this(new InetSocketAddress(server, port), server, login, pass, clientId, readers, options);
+
+        try
+        {
+            handshake.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw (LoginException) e.getCause();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            handshake.completeExceptionally(new LoginException("Interrupted while connecting"));
+            throw new LoginException("Interrupted while connecting");
+        }
+    }
 
+    /**
+     * Opens a connection and sends CONNECT, without waiting for the server
+     * to answer.
+     */
+    private Client(InetSocketAddress address, String server, String login, String pass, String clientId, Executor readers, Options options) throws IOException
+    {
+        this.address  = address;
+        this.readers  = readers;
+        this.options  = options;
         this.clientId = clientId;
 
-        // Connect to the server
-        Map<String, String> header = new HashMap<>();
-        header.put("host", server);
-        header.put("accept-version", "1.2");
-        header.put("login", login);
-        header.put("passcode", pass);
-        header.put("client-id", clientId);
-        header.put("heart-beat", "0,60000");
+        setListenerExecutor(options.getListenerExecutor());
 
-        transmit(Command.CONNECT, header, null);
+        connectHeader = new HashMap<>();
+        connectHeader.put("host", server);
+        connectHeader.put("accept-version", Versions.ACCEPT);
+        connectHeader.put("login", login);
+        connectHeader.put("passcode", pass);
+        connectHeader.put("client-id", clientId);
+        connectHeader.put("heart-beat", options.getHeartBeatSend() + "," + options.getHeartBeatReceive());
 
-        // Busy loop bail out
-        try
+        // A refused or timed out handshake leaves nothing open
+        handshake.whenComplete((v, e) ->
         {
-            int connectAttempts = 0;
-            String error = null;
+            if (e != null)
+                abandon();
+        });
+        TimerWheel.shared().schedule(() ->
+            handshake.completeExceptionally(new LoginException("Did not connect in time!")),
+            options.getConnectTimeout());
 
-            while (connectAttempts <= 20 && (!isConnected() && ((error = nextError()) == null)))
+        // Connect to the server
+        connection = new Connection();
+        connection.start();
+        connection.send(Command.CONNECT, connectHeader, null);
+    }
+
+    /**
+     * Connects to a server without blocking the caller, so that many
+     * clients can be connected at once.  The socket is opened on a thread
+     * from readers.
+     *
+     * @see Client(String, int, String, String, String, Executor, Options)
+     * @return a future that completes with the client once the server has
+     *  accepted it, or fails with the IOException or LoginException that
+     *  the constructor would have thrown
+     */
+    public static CompletableFuture<Client> connectAsync(final String server, final int port, final String login, final String pass,
+                                                         final String clientId, final Executor readers, final Options options)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            try
             {
-                Thread.sleep(100);
-                connectAttempts++;
+                return new Client(new InetSocketAddress(server, port), server, login, pass, clientId, readers, options);
             }
-
-            if (connectAttempts > 20)
-                throw new LoginException("Did not connect in time!");
-
-            if (error != null)
-                throw new LoginException(error);
-        }
-        catch (InterruptedException e) {}
+            catch (IOException e)
+            {
+                throw new CompletionException(e);
+            }
+        }, readers).thenCompose(c -> c.handshake.thenApply(v -> c));
     }
 
     public void subscribe(String topicName, String topicID, Listener listener)
     {
-        Map<String, String> headers = new HashMap<>();
+        Map<String, String> headers = new Headers();
 
         headers.put("ack", "client-individual");
         headers.put("id",  clientId + "-" + topicID);
@@ -103,7 +408,7 @@ public class Client extends Stomp implements MessageReceiver
     @Override
     public boolean isClosed()
     {
-        return socket.isClosed();
+        return connection.isClosed();
     }
 
     public void ack(String ackId)
@@ -111,46 +416,561 @@ public class Client extends Stomp implements MessageReceiver
         if (ackId == null || ackId.isEmpty())
             throw new IllegalArgumentException("ackId cannot be null or empty");
 
-        Map<String, String> headers = new HashMap<>();
+        Map<String, String> headers = new Headers();
         headers.put("id", ackId.replace("\\c", ":"));
 
-        transmit(Command.ACK, headers, null);
+        transmit(Command.ACK, headers);
+    }
+
+    /**
+     * Refuses a message, so that the server can give it to another
+     * subscriber.
+     *
+     * @param ackId The value of the message's "ack" header
+     */
+    public void nack(String ackId)
+    {
+        if (ackId == null || ackId.isEmpty())
+            throw new IllegalArgumentException("ackId cannot be null or empty");
+
+        Map<String, String> headers = new Headers();
+        headers.put("id", ackId.replace("\\c", ":"));
+
+        transmit(Command.NACK, headers);
     }
 
     @Override
     public void disconnect(Map<String, String> header)
     {
-        if (!isConnected())
-            return;
+        Connection c;
+        synchronized (unsent)
+        {
+            if (closing)
+                return;
 
-        transmit(Command.DISCONNECT, header, null);
-        listener.interrupt();
+            closing = true;
+            live    = false;
+            c       = connection;
 
-        try { input.close(); }
-        catch (IOException e) {}
+            for (EncodedFrame f : unsent)
+                f.release();
+            unsent.clear();
+        }
 
-        try { output.close(); }
-        catch (IOException e) {}
+        Thread t = reconnector;
+        if (t != null)
+            t.interrupt();
 
-        try { socket.close(); }
-        catch (IOException e) {}
+        if (isConnected())
+            c.send(Command.DISCONNECT, header, null);
+        stopHeartBeats();
+        c.close(1000);
 
         connected = false;
+        failReceipts("Disconnected");
+        handshake.completeExceptionally(new LoginException("Disconnected"));
+    }
+
+    /**
+     * Closes a connection the server never accepted.
+     */
+    private void abandon()
+    {
+        synchronized (unsent)
+        {
+            closing = true;
+            live    = false;
+        }
+
+        Connection c = connection;
+        if (c != null)
+            c.close(0);
     }
 
     /**
-     * Transmit a message to the server
+     * Message bodies arrive from the connection as bytes, and are only
+     * decoded for listeners that want text.
+     */
+    @Override
+    public void receive(Command command, Map<String, String> header, byte[] body)
+    {
+        heard = true;
+        if (command == Command.MESSAGE)
+            super.receive(command, header, body);
+        else
+            receive(command, header, Bodies.text(body));
+    }
+
+    @Override
+    public void receive(Command command, Map<String, String> header, String body)
+    {
+        heard = true;
+        if (command == Command.CONNECTED)
+        {
+            // A server that speaks 1.0 has no heart-beats
+            String version = header == null ? null : header.get("version");
+            escapes = Versions.escapes(version);
+            if (Versions.heartBeats(version))
+                startHeartBeats(header.get("heart-beat"));
+            resume();
+        }
+        else if (command == Command.ERROR && !handshake.isDone())
+        {
+            // A refused CONNECT, reported by the constructor
+            handshake.completeExceptionally(new LoginException(body));
+            return;
+        }
+
+        super.receive(command, header, body);
+
+        if (command == Command.CONNECTED)
+            handshake.complete(null);
+    }
+
+    /**
+     * Negotiates heart-beats with the server, the same way the server does
+     * with its clients.  If the server goes quiet for half as long again as
+     * the negotiated period, an error is reported and the connection is
+     * dropped.
+     *
+     * @param offer The server's heart-beat header, or null
+     */
+    private void startHeartBeats(String offer)
+    {
+        int canSend = 0, wants = 0;
+        if (offer != null)
+        {
+            int comma = offer.indexOf(',');
+            try
+            {
+                canSend = Integer.parseInt(offer.substring(0, comma).trim());
+                wants   = Integer.parseInt(offer.substring(comma + 1).trim());
+            }
+            catch (RuntimeException e)
+            {
+                // Malformed; no heart-beats
+            }
+        }
+
+        int send    = options.getHeartBeatSend();
+        int receive = options.getHeartBeatReceive();
+        // Look twice a period, so that no more than a period passes
+        // without something being sent
+        if (send > 0 && wants > 0)
+            sendHeartBeat(Math.max(1, Math.max(send, wants) / 2));
+        if (receive > 0 && canSend > 0)
+        {
+            heard = false;
+            checkHeartBeat(Math.max(receive, canSend) * 3L / 2);
+        }
+    }
+
+    private void sendHeartBeat(final long period)
+    {
+        sendTimer = TimerWheel.shared().schedule(() ->
+        {
+            if (!isConnected())
+                return;
+
+            // Never wait on the timer's thread, which every connection shares
+            if (!sent)
+                connection.writer.offer(EncodedFrame.HEARTBEAT.retain());
+            sent = false;
+            sendHeartBeat(period);
+        }, period);
+    }
+
+    private void checkHeartBeat(final long period)
+    {
+        receiveTimer = TimerWheel.shared().schedule(() ->
+        {
+            if (!isConnected())
+                return;
+
+            if (!heard)
+            {
+                // Error listeners and closing may block; not on the
+                // timer's thread
+                Connection c = connection;
+                readers.execute(() ->
+                {
+                    if (connection != c)
+                        return;
+                    receive(Command.ERROR, null, "Heart-beat timeout: nothing heard from the server");
+                    c.close(0);
+                    lost(c);
+                });
+                return;
+            }
+
+            heard = false;
+            checkHeartBeat(period);
+        }, period);
+    }
+
+    private void stopHeartBeats()
+    {
+        TimerWheel.Timeout t = sendTimer;
+        if (t != null)
+            t.cancel();
+
+        t = receiveTimer;
+        if (t != null)
+            t.cancel();
+    }
+
+    /**
+     * Transmit a message to the server.  The frame is queued for the writer
+     * thread, so this returns before it reaches the socket; use a receipt to
+     * know when the server has it.
+     *
+     * While a client that reconnects is between connections, frames are
+     * kept until it is connected again instead.
      */
     @Override
     public void transmit(Command command, Map<String, String> header, String body)
+    {
+        post(command, header, body);
+    }
+
+    /**
+     * Transmit a message with a binary body to the server, the same way.
+     */
+    @Override
+    public void transmit(Command command, Map<String, String> header, byte[] body)
+    {
+        post(command, header, body);
+    }
+
+    /**
+     * Sends or keeps a frame.
+     *
+     * @param body A String, a byte[], or null
+     */
+    private void post(Command command, Map<String, String> header, Object body)
+    {
+        if (options.getReconnectDelay() > 0)
+        {
+            remember(command, header);
+            if (!live && hold(command, header, body, false))
+                return;
+        }
+
+        if (connection.writer.send(encode(command, header, body)))
+            sent = true;
+        else if (options.getReconnectDelay() == 0 || !hold(command, header, body, true))
+            notSent(header, "Connection closed; " + command + " not sent");
+    }
+
+    /**
+     * Encodes a frame into an array of its own, for the writer or for the
+     * reconnect buffer.
+     */
+    private EncodedFrame encode(Command command, Map<String, String> header, Object body)
+    {
+        if (body instanceof byte[])
+            return FrameEncoder.local().copy(command, header, (byte[]) body, escapes);
+        return FrameEncoder.local().copy(command, header, (String) body, escapes);
+    }
+
+    /**
+     * Reports a frame that was not sent, failing its receipt, if it asked
+     * for one.
+     */
+    private void notSent(Map<String, String> header, String message)
+    {
+        Map<String, String> error = null;
+        String receipt = header == null ? null : header.get("receipt");
+        if (receipt != null)
+        {
+            error = new HashMap<>();
+            error.put("receipt-id", receipt);
+        }
+        receive(Command.ERROR, error, message);
+    }
+
+    /**
+     * Keeps track of subscriptions, so that they can be made again on a new
+     * connection.
+     */
+    private void remember(Command command, Map<String, String> header)
+    {
+        if (command != Command.SUBSCRIBE && command != Command.UNSUBSCRIBE)
+            return;
+
+        synchronized (unsent)
+        {
+            String destination = header.get("destination");
+            if (command == Command.SUBSCRIBE)
+            {
+                Map<String, String> copy = new Headers(header);
+                copy.remove("receipt");
+                subscriptions.put(destination, copy);
+            }
+            else if (destination != null)
+            {
+                subscriptions.remove(destination);
+            }
+            else
+            {
+                String id = header.get("id");
+                subscriptions.values().removeIf(h -> id != null && id.equals(h.get("id")));
+            }
+        }
+    }
+
+    /**
+     * Keeps a frame to send once the client has reconnected.
+     * Subscriptions are made again from what remember() saw, and
+     * acknowledgements are for messages the server will send again, so
+     * neither is kept.
+     *
+     * @param failed True if the frame could not be sent on the current
+     *  connection, so it must be kept even if the connection is not yet
+     *  known to be lost
+     * @return false if the frame should go out on the current connection
+     *  after all
+     */
+    private boolean hold(Command command, Map<String, String> header, Object body, boolean failed)
+    {
+        synchronized (unsent)
+        {
+            if (closing || (live && !failed))
+                return false;
+
+            switch (command)
+            {
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+            case ACK:
+            case NACK:
+                return true;
+            default:
+                break;
+            }
+
+            if (unsent.size() >= options.getReconnectBuffer())
+            {
+                notSent(header, "Reconnect buffer full; " + command + " not sent");
+                return true;
+            }
+
+            unsent.add(encode(command, header, body));
+            return true;
+        }
+    }
+
+    /**
+     * Called when the server accepts a connection.  On a new connection,
+     * makes the client's subscriptions again and sends whatever was kept
+     * while it was disconnected, before anything else may be sent.
+     */
+    private void resume()
+    {
+        synchronized (unsent)
+        {
+            Connection c = connection;
+            if (closing)
+                return;
+
+            if (options.getReconnectDelay() > 0)
+            {
+                for (Map<String, String> h : subscriptions.values())
+                    c.send(Command.SUBSCRIBE, h, null);
+
+                EncodedFrame f;
+                while ((f = unsent.poll()) != null)
+                    c.writer.send(f);
+            }
+
+            attempts = 0;
+            live     = true;
+        }
+    }
+
+    /**
+     * Called when a connection goes away.  A client that reconnects starts
+     * doing so; any other disconnects.
+     */
+    private void lost(Connection c)
+    {
+        synchronized (unsent)
+        {
+            if (c != connection || c.lost || closing)
+                return;
+
+            c.lost = true;
+            live   = false;
+        }
+
+        if (options.getReconnectDelay() == 0)
+        {
+            disconnect();
+            return;
+        }
+
+        stopHeartBeats();
+        c.close(0);
+        connected = false;
+        failReceipts("Connection lost");
+
+        Thread t = new Thread(this::reconnect, "Stomp-Reconnect");
+        t.setDaemon(true);
+        reconnector = t;
+        t.start();
+    }
+
+    /**
+     * Tries to connect again, waiting twice as long after each failure, up
+     * to the maximum delay.  Giving up on a connection that opened but was
+     * not accepted in time counts as a failure.
+     */
+    private void reconnect()
     {
         try
         {
-            Transmitter.transmit(command, header, body, output);
+            while (!closing)
+            {
+                long delay = options.getReconnectDelay() << Math.min(attempts, 30);
+                Thread.sleep(Math.min(delay, options.getMaxReconnectDelay()));
+                attempts++;
+
+                Connection c;
+                try
+                {
+                    c = new Connection();
+                }
+                catch (IOException e)
+                {
+                    continue;
+                }
+
+                synchronized (unsent)
+                {
+                    if (closing)
+                    {
+                        c.close(0);
+                        return;
+                    }
+                    connection = c;
+                }
+
+                c.start();
+                c.send(Command.CONNECT, connectHeader, null);
+                TimerWheel.shared().schedule(() ->
+                {
+                    if (!live && connection == c)
+                    {
+                        c.close(0);
+                        lost(c);
+                    }
+                }, options.getConnectTimeout());
+                return;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Disconnected
         }
-        catch (Exception e)
+        finally
+        {
+            reconnector = null;
+        }
+    }
+
+    /**
+     * One connection to the server.  A client that reconnects has a new one
+     * each time; frames from an old one are ignored.
+     */
+    private final class Connection implements MessageReceiver
+    {
+        final Socket       socket;
+        final InputStream  input;
+        final OutputStream output;
+        final ClientWriter writer;
+        final Receiver     receiver;
+        boolean            lost;
+
+        Connection() throws IOException
+        {
+            socket = new Socket();
+            try
+            {
+                socket.setTcpNoDelay(options.getTcpNoDelay());
+                if (options.getSendBufferSize() > 0)
+                    socket.setSendBufferSize(options.getSendBufferSize());
+                if (options.getReceiveBufferSize() > 0)
+                    socket.setReceiveBufferSize(options.getReceiveBufferSize());
+                socket.connect(address, (int) Math.min(options.getConnectTimeout(), Integer.MAX_VALUE));
+
+                input  = socket.getInputStream();
+                output = socket.getOutputStream();
+            }
+            catch (IOException e)
+            {
+                socket.close();
+                throw e;
+            }
+
+            writer   = new ClientWriter(output, options, this);
+            receiver = new Receiver(this, input);
+        }
+
+        void start()
+        {
+            writer.start();
+            receiver.start(readers);
+        }
+
+        /**
+         * Sends a frame on this connection, whether or not the client is
+         * using it yet.
+         */
+        void send(Command command, Map<String, String> header, String body)
+        {
+            if (writer.send(FrameEncoder.local().copy(command, header, body, escapes)))
+                sent = true;
+        }
+
+        /**
+         * Closes the connection, first giving the writer up to the given
+         * time to write what is queued.
+         */
+        void close(long drain)
+        {
+            writer.close(drain);
+            receiver.stop();
+
+            try { input.close(); }
+            catch (IOException e) {}
+
+            try { output.close(); }
+            catch (IOException e) {}
+
+            try { socket.close(); }
+            catch (IOException e) {}
+        }
+
+        public void receive(Command command, Map<String, String> header, String body)
+        {
+            if (connection == this)
+                Client.this.receive(command, header, body);
+        }
+
+        public void receive(Command command, Map<String, String> header, byte[] body)
+        {
+            if (connection == this)
+                Client.this.receive(command, header, body);
+        }
+
+        public void disconnect()
+        {
+            lost(this);
+        }
+
+        public boolean isClosed()
         {
-            receive(Command.ERROR, null, e.getMessage());
+            return socket.isClosed();
         }
     }
-}
\ No newline at end of file
+}
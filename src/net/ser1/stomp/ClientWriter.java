@@ -0,0 +1,278 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The publish pipeline of a network Client.
+ *
+ * Any number of threads hand encoded frames to the writer without taking a
+ * lock; a single thread takes them off the queue, copies small frames into
+ * one block, and writes the block to the socket when it is full, or when
+ * the queue runs dry and the oldest frame in the block has waited as long
+ * as the Client.Options allow.  Under load a whole batch of frames costs one
+ * write, and frames from different threads are never interleaved.
+ *
+ * Senders only wait when more than the allowed number of bytes are queued,
+ * until the writer has caught up.
+ */
+class ClientWriter implements Runnable
+{
+    private final OutputStream                       out;
+    private final MessageReceiver                    errors;
+    private final ConcurrentLinkedQueue<EncodedFrame> frames = new ConcurrentLinkedQueue<>();
+    private final byte[]                             block;
+    private final long                               maxLatency;
+    private final long                               maxQueued;
+    private final AtomicLong                         queued = new AtomicLong();
+    private final Object                             full   = new Object();
+    private volatile int                             blocked;
+
+    private volatile Thread  thread;
+    private volatile boolean running = true;
+    private volatile boolean waiting;
+
+    /**
+     * Set by the writer once it has been asked to stop and will only take
+     * what is already queued.  A sender that finds it set after queueing
+     * takes its frame back, unless the writer already has it.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * @param errors Told about a failed write, with an ERROR frame
+     */
+    ClientWriter(OutputStream out, Client.Options options, MessageReceiver errors)
+    {
+        this.out        = out;
+        this.errors     = errors;
+        this.block      = new byte[options.getMaxBatchBytes()];
+        this.maxLatency = TimeUnit.MILLISECONDS.toNanos(options.getMaxLatency());
+        this.maxQueued  = options.getMaxQueuedBytes();
+    }
+
+    void start()
+    {
+        thread = new Thread(this, "Stomp-Client-Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a frame, handing over the caller's reference to it.
+     *
+     * @return false if the writer has stopped, and the frame was dropped
+     */
+    boolean send(EncodedFrame frame)
+    {
+        if (!enqueue(frame))
+            return false;
+
+        if (queued.get() > maxQueued)
+            awaitRoom();
+        return true;
+    }
+
+    /**
+     * Queues a frame if there is room for it, without ever waiting, as for
+     * a heart-beat: a queue that is backed up already gives the server
+     * something to read.  Hands over the caller's reference to the frame.
+     *
+     * @return false if the frame was dropped
+     */
+    boolean offer(EncodedFrame frame)
+    {
+        if (queued.get() + frame.length() > maxQueued)
+        {
+            frame.release();
+            return false;
+        }
+        return enqueue(frame);
+    }
+
+    private boolean enqueue(EncodedFrame frame)
+    {
+        if (!running)
+        {
+            frame.release();
+            return false;
+        }
+
+        frames.add(frame);
+        if (stopped && frames.remove(frame))
+        {
+            frame.release();
+            return false;
+        }
+        if (waiting)
+            LockSupport.unpark(thread);
+
+        queued.addAndGet(frame.length());
+        return true;
+    }
+
+    /**
+     * Waits until the writer has brought the queue back under its limit, or
+     * has stopped.
+     */
+    private void awaitRoom()
+    {
+        synchronized (full)
+        {
+            blocked++;
+            try
+            {
+                while (queued.get() > maxQueued && running)
+                    full.wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                blocked--;
+            }
+        }
+    }
+
+    /**
+     * Wakes senders waiting for room, if there are any.
+     */
+    private void wakeSenders()
+    {
+        if (blocked > 0)
+        {
+            synchronized (full)
+            {
+                full.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops the writer once it has written whatever is queued, waiting at
+     * most the given time for that, or not at all if it is 0.
+     */
+    void close(long timeout)
+    {
+        running = false;
+
+        Thread t = thread;
+        if (t == null)
+            return;
+
+        LockSupport.unpark(t);
+        if (timeout <= 0)
+            return;
+        try
+        {
+            t.join(timeout);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        int  used  = 0;
+        long first = 0;
+
+        try
+        {
+            while (true)
+            {
+                EncodedFrame f = frames.poll();
+                if (f != null)
+                {
+                    int length = f.length();
+                    if (used > 0 && used + length > block.length)
+                    {
+                        out.write(block, 0, used);
+                        used = 0;
+                    }
+
+                    if (length > block.length)
+                    {
+                        f.writeTo(out);
+                    }
+                    else
+                    {
+                        if (used == 0)
+                            first = System.nanoTime();
+                        f.copyTo(block, used);
+                        used += length;
+                    }
+                    f.release();
+                    if (queued.addAndGet(-length) <= maxQueued && blocked > 0)
+                        wakeSenders();
+                    continue;
+                }
+
+                if (!running)
+                {
+                    if (stopped)
+                        break;
+
+                    // Write whatever was queued before senders can see
+                    // that the writer has stopped
+                    stopped = true;
+                    continue;
+                }
+
+                long wait = 0;
+                if (used > 0)
+                {
+                    wait = maxLatency - (System.nanoTime() - first);
+                    if (wait <= 0)
+                    {
+                        out.write(block, 0, used);
+                        used = 0;
+                        continue;
+                    }
+                }
+
+                // Producers check this flag after queueing, and we check
+                // the queue after setting it, so no wake-up is missed
+                waiting = true;
+                if (frames.isEmpty() && running)
+                {
+                    if (wait > 0)
+                        LockSupport.parkNanos(this, wait);
+                    else
+                        LockSupport.park(this);
+                }
+                waiting = false;
+            }
+
+            if (used > 0)
+                out.write(block, 0, used);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // Failures writing to a socket the client has already closed
+            // are not worth reporting
+            running = false;
+            if (!errors.isClosed())
+                errors.receive(Command.ERROR, null, e.getMessage());
+        }
+        finally
+        {
+            // After a failed write, frames still queued are lost with the
+            // connection
+            running = false;
+            stopped = true;
+            EncodedFrame f;
+            while ((f = frames.poll()) != null)
+                f.release();
+            wakeSenders();
+        }
+    }
+}
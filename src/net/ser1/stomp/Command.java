@@ -1,5 +1,7 @@
 package net.ser1.stomp;
 
+import java.nio.charset.StandardCharsets;
+
 public enum Command
 {
     ABORT       ("ABORT"),
@@ -10,6 +12,7 @@ public enum Command
     DISCONNECT  ("DISCONNECT"),
     NACK        ("NACK"),
     SEND        ("SEND"),
+    STOMP       ("STOMP"),
     SUBSCRIBE   ("SUBSCRIBE"),
     UNSUBSCRIBE ("UNSUBSCRIBE"),
 
@@ -20,11 +23,45 @@ public enum Command
     HEARTBEAT   ("");
 
     public  final static String ENCODING = "UTF-8";
+    private final static Command[] COMMANDS = values();
     private final        String command;
 
+    /**
+     * The command as it appears on the wire.
+     */
+    final byte[] bytes;
+
     private Command(String commandName)
     {
         command = commandName;
+        bytes   = commandName.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Recognises a command straight from the bytes of a frame's first
+     * line, without decoding them into a String first.
+     *
+     * @return the command, or null if the bytes do not name one
+     */
+    static Command parse(byte[] buf, int offset, int length)
+    {
+        if (length == 0)
+            return null;
+
+        for (Command cmd : COMMANDS)
+        {
+            byte[] b = cmd.bytes;
+            if (b.length != length || b[0] != buf[offset])
+                continue;
+
+            int i = 1;
+            while (i < length && b[i] == buf[offset + i])
+                i++;
+
+            if (i == length)
+                return cmd;
+        }
+        return null;
     }
 
     public static Command getCommand(String command)
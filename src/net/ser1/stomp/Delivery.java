@@ -0,0 +1,54 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+
+/**
+ * A message on its way to a subscription that acknowledges what it
+ * receives.  The delivery holds a reference to the encoded frame until the
+ * message is acknowledged, or handed to somebody else.
+ */
+class Delivery
+{
+    final Subscription        subscription;
+    final String              messageId;
+    final Map<String, String> headers;
+    final byte[]              body;
+    final EncodedFrame        frame;
+    final SlowConsumerPolicy  policy;
+
+    /**
+     * The subscription and "ack" header lines spliced into this copy of the
+     * frame.
+     */
+    final byte[] extraHeaders;
+
+    Delivery(Subscription subscription, String messageId, Map<String, String> headers, byte[] body,
+             EncodedFrame frame, SlowConsumerPolicy policy)
+    {
+        this.subscription = subscription;
+        this.messageId    = messageId;
+        this.headers      = headers;
+        this.body         = body;
+        this.frame        = frame;
+        this.policy       = policy;
+
+        byte[] ack = FrameEncoder.header("ack", messageId, subscription.escapes);
+        if (subscription.idHeader == null)
+        {
+            extraHeaders = ack;
+        }
+        else
+        {
+            extraHeaders = new byte[subscription.idHeader.length + ack.length];
+            System.arraycopy(subscription.idHeader, 0, extraHeaders, 0, subscription.idHeader.length);
+            System.arraycopy(ack, 0, extraHeaders, subscription.idHeader.length, ack.length);
+        }
+
+        frame.retain();
+    }
+
+    void release()
+    {
+        frame.release();
+    }
+}
@@ -0,0 +1,49 @@
+package net.ser1.stomp;
+
+/**
+ * Wildcard destinations.
+ *
+ * Destinations are split into segments on '/'.  In a subscription, a
+ * segment of "*" matches any one segment, and a final segment of "#" or ">"
+ * matches one or more segments.  So "/prices/*&#47;EUR" matches
+ * "/prices/GBP/EUR", and "/prices/#" matches both of those and
+ * "/prices/GBP".  Anywhere else these characters are just characters.
+ */
+final class Destinations
+{
+    private Destinations() {}
+
+    /**
+     * Splits a destination into its segments.
+     */
+    static String[] segments(String destination)
+    {
+        return destination.split("/", -1);
+    }
+
+    static boolean isAnyOne(String segment)
+    {
+        return segment.equals("*");
+    }
+
+    static boolean isAnyRest(String segment)
+    {
+        return segment.equals("#") || segment.equals(">");
+    }
+
+    /**
+     * Tests whether a subscription destination contains wildcards.
+     */
+    static boolean isPattern(String destination)
+    {
+        if (destination.indexOf('*') < 0 && destination.indexOf('#') < 0 && destination.indexOf('>') < 0)
+            return false;
+
+        String[] s = segments(destination);
+        for (int i = 0; i < s.length; i++)
+            if (isAnyOne(s[i]) || (i == s.length - 1 && isAnyRest(s[i])))
+                return true;
+
+        return false;
+    }
+}
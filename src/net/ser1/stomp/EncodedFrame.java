@@ -0,0 +1,229 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame that has been encoded once so that the same bytes can be written
+ * to many connections.
+ *
+ * The bytes are split just before the blank line that ends the headers, so
+ * that a per-connection header, such as "subscription", can be spliced in
+ * with a gathering write without touching the rest of the frame.  A large
+ * body is kept in an array of its own, ending with the frame's NUL, and
+ * written from there, so it is never copied in with the headers.
+ *
+ * A frame whose headers are written differently for peers that speak 1.2
+ * carries the escaped encoding along with it, and each connection writes
+ * the one for its version.
+ *
+ * The bytes never change once encoded.  The frame is reference counted:
+ * whoever creates it holds one reference, every write path that keeps it
+ * beyond the call that handed it over must retain() it, and everyone
+ * release()s what they hold.  When the last reference goes the backing
+ * array is recycled for the next frame.
+ */
+class EncodedFrame
+{
+    /**
+     * Frames that fit in this many bytes use pooled arrays.
+     */
+    static final int POOLED_SIZE = 8192;
+
+    private static final int               MAX_POOLED = 256;
+    private static final Queue<byte[]>     POOL       = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger     POOLED     = new AtomicInteger();
+
+    /**
+     * A heart-beat: a single EOL.  Its own reference is never released, so
+     * it can be queued to any number of connections.
+     */
+    static final EncodedFrame HEARTBEAT = new EncodedFrame(new byte[] { '\n' }, 1, 0);
+
+    private final byte[]        bytes;
+    private final int           length;
+    private final int           headLength;
+    private final byte[]        body;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * The same frame escaped for 1.2, if that differs.  This frame holds a
+     * reference to it until its own last one goes.
+     */
+    private EncodedFrame escaped;
+
+    /**
+     * When the message in the frame expires, in milliseconds since the
+     * epoch, or 0 if it never does.  Set before the frame is queued.
+     */
+    private long expires;
+
+    /**
+     * @param bytes The encoded frame, from allocate() or of its own
+     * @param length The length of the frame in bytes
+     * @param headLength The length of the command and header lines, up to
+     *  but not including the blank line before the body
+     */
+    EncodedFrame(byte[] bytes, int length, int headLength)
+    {
+        this(bytes, length, headLength, null);
+    }
+
+    /**
+     * @param body The body and the NUL that ends the frame, which follow the
+     *  given length of bytes, or null if the bytes are the whole frame
+     */
+    EncodedFrame(byte[] bytes, int length, int headLength, byte[] body)
+    {
+        this.bytes      = bytes;
+        this.length     = length;
+        this.headLength = headLength;
+        this.body       = body;
+    }
+
+    /**
+     * An array of at least the given size, recycled if possible.
+     */
+    static byte[] allocate(int size)
+    {
+        if (size > POOLED_SIZE)
+            return new byte[size];
+
+        byte[] b = POOL.poll();
+        if (b == null)
+            return new byte[POOLED_SIZE];
+
+        POOLED.decrementAndGet();
+        return b;
+    }
+
+    int length()
+    {
+        return body == null ? length : length + body.length;
+    }
+
+    /**
+     * Attaches the escaped encoding of this frame.  Set before the frame is
+     * queued; this frame takes over the caller's reference to it.
+     */
+    void setEscaped(EncodedFrame escaped)
+    {
+        this.escaped = escaped;
+    }
+
+    /**
+     * The encoding of this frame for a peer.
+     *
+     * @param escapes True if the peer speaks 1.2
+     */
+    EncodedFrame as(boolean escapes)
+    {
+        return escapes && escaped != null ? escaped : this;
+    }
+
+    void setExpires(long expires)
+    {
+        this.expires = expires;
+    }
+
+    long expires()
+    {
+        return expires;
+    }
+
+    /**
+     * @param now The time, in milliseconds since the epoch
+     */
+    boolean expired(long now)
+    {
+        return expires > 0 && expires <= now;
+    }
+
+    /**
+     * The frame as buffers ready for a gathering write.  The returned
+     * buffers are fresh views, so each writer may consume its own.
+     *
+     * @param extraHeader An encoded header line, ending with EOL, to add
+     *  to the frame's headers, or null.
+     */
+    ByteBuffer[] buffers(byte[] extraHeader)
+    {
+        if (extraHeader == null)
+        {
+            if (body == null)
+                return new ByteBuffer[] { ByteBuffer.wrap(bytes, 0, length) };
+            return new ByteBuffer[] { ByteBuffer.wrap(bytes, 0, length), ByteBuffer.wrap(body) };
+        }
+
+        if (body == null)
+        {
+            return new ByteBuffer[]
+            {
+                ByteBuffer.wrap(bytes, 0, headLength),
+                ByteBuffer.wrap(extraHeader),
+                ByteBuffer.wrap(bytes, headLength, length - headLength)
+            };
+        }
+
+        return new ByteBuffer[]
+        {
+            ByteBuffer.wrap(bytes, 0, headLength),
+            ByteBuffer.wrap(extraHeader),
+            ByteBuffer.wrap(bytes, headLength, length - headLength),
+            ByteBuffer.wrap(body)
+        };
+    }
+
+    /**
+     * Copies the whole frame into an array, which must have room for it.
+     */
+    void copyTo(byte[] dst, int off)
+    {
+        System.arraycopy(bytes, 0, dst, off, length);
+        if (body != null)
+            System.arraycopy(body, 0, dst, off + length, body.length);
+    }
+
+    /**
+     * Writes the whole frame to a stream.
+     */
+    void writeTo(OutputStream out) throws IOException
+    {
+        out.write(bytes, 0, length);
+        if (body != null)
+            out.write(body);
+    }
+
+    /**
+     * Takes another reference to this frame.
+     */
+    EncodedFrame retain()
+    {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops a reference to this frame.  The frame must not be used by the
+     * caller afterwards.
+     */
+    void release()
+    {
+        if (refs.decrementAndGet() != 0)
+            return;
+
+        if (escaped != null)
+            escaped.release();
+        if (bytes.length == POOLED_SIZE)
+        {
+            if (POOLED.incrementAndGet() <= MAX_POOLED)
+                POOL.offer(bytes);
+            else
+                POOLED.decrementAndGet();
+        }
+    }
+}
@@ -1,9 +1,408 @@
 package net.ser1.stomp;
 
-/*
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A Queue kept on disk as an append-only log.
+ *
+ * The log is a series of segment files in one directory, each memory
+ * mapped, so storing a message is a sequential copy of its encoded frame
+ * into the mapped segment and the operating system writes it out in the
+ * background.  When a segment fills up a new one is started; old segments
+ * are deleted once the log is larger, or older, than its retention limits,
+ * along with any messages in them that were never delivered.
+ *
+ * For each destination the queue keeps only an array of the positions of
+ * its undelivered messages.  Delivering them appends a marker to the log,
+ * so when the queue is reopened on the same directory, the positions of
+ * the messages still undelivered are rebuilt by reading the log through.
+ *
+ * Example:
+ * <pre>
+ *   Server s = new Server( 61626 );
+ *   FileQueue q = new FileQueue( new File( "/var/spool/stomp" ) );
+ *   q.setRetention( 1024L * 1024 * 1024, 7L * 24 * 60 * 60 * 1000 );
+ *   s.setQueue( q );
+ * </pre>
+ *
+ * Messages are made durable against a crash of the VM as soon as they are
+ * stored, but against a crash of the machine only when a segment is rolled
+ * or the queue is closed.
+ *
  * (c)2005 Sean Russell
  */
 public class FileQueue implements Queue
 {
-    public FileQueue() {}
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".log";
+
+    /**
+     * A record is: its length, not counting the length itself; its type; the
+     * length of the destination name; the name; and then for a MESSAGE the
+     * encoded frame.  The length is written last, so a record that was
+     * never finished reads as the end of the log.
+     */
+    private static final byte MESSAGE       = 1;
+    private static final byte DELIVERED     = 2;
+    private static final int  RECORD_HEADER = 4 + 1 + 2;
+
+    private static final class Segment
+    {
+        final long             base;
+        final File             file;
+        final MappedByteBuffer map;
+        int                    end;
+        long                   modified;
+
+        Segment(long base, File file, MappedByteBuffer map)
+        {
+            this.base     = base;
+            this.file     = file;
+            this.map      = map;
+            this.modified = file.lastModified();
+        }
+    }
+
+    /**
+     * The log positions of a destination's undelivered messages.
+     */
+    private static final class Index
+    {
+        long[] positions = new long[16];
+        int    size;
+
+        void add(long position)
+        {
+            if (size == positions.length)
+                positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = position;
+        }
+    }
+
+    private final File directory;
+    private final int  segmentSize;
+    private long       maxBytes = Long.MAX_VALUE;
+    private long       maxAge   = Long.MAX_VALUE;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment                      active;
+    private final Map<String, Index>     indexes  = new HashMap<>();
+
+    private byte[] name = new byte[256];
+
+    /**
+     * Opens, or creates, a queue in a directory, with segments of
+     * DEFAULT_SEGMENT_SIZE bytes.
+     */
+    public FileQueue(File directory) throws IOException
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens, or creates, a queue in a directory.  Messages left undelivered
+     * in the directory by an earlier queue are delivered to the first
+     * subscriber to their destinations, as usual.
+     *
+     * @param segmentSize The size at which segment files are rolled.  A
+     *  message too big for a segment gets a segment of its own.
+     */
+    public FileQueue(File directory, int segmentSize) throws IOException
+    {
+        if (segmentSize < RECORD_HEADER)
+            throw new IllegalArgumentException("segment size too small: " + segmentSize);
+
+        this.directory   = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create queue directory " + directory);
+
+        File[] files = directory.listFiles((d, n) -> n.endsWith(SUFFIX));
+        Arrays.sort(files);
+        for (File f : files)
+        {
+            long base;
+            try
+            {
+                base = Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+
+            active = new Segment(base, f, map(f, f.length()));
+            segments.put(base, active);
+            scan(active);
+        }
+
+        if (active == null)
+            roll(0);
+    }
+
+    /**
+     * Limits how much of the log is kept.  The oldest segments are deleted
+     * when the log grows past maxBytes, or when they were last written to
+     * more than maxAge milliseconds ago.  The segment being written to is
+     * never deleted.  Limits are checked whenever a segment is rolled.
+     */
+    public synchronized void setRetention(long maxBytes, long maxAge)
+    {
+        this.maxBytes = maxBytes;
+        this.maxAge   = maxAge;
+        retain();
+    }
+
+    public void store(String destination, Map<String, String> header, String body) throws IOException
+    {
+        store(destination, header, Bodies.bytes(body));
+    }
+
+    /**
+     * Bodies are logged as the bytes they arrived as, with a content-length,
+     * so binary messages come back intact.
+     */
+    public synchronized void store(String destination, Map<String, String> header, byte[] body) throws IOException
+    {
+        int nameLength = name(destination);
+
+        ByteBuffer[] frame = FrameEncoder.local().encode(Command.MESSAGE, header, body);
+        int frameLength = 0;
+        for (ByteBuffer b : frame)
+            frameLength += b.remaining();
+
+        long position = append(MESSAGE, nameLength, frame, frameLength);
+
+        Index index = indexes.get(destination);
+        if (index == null)
+        {
+            index = new Index();
+            indexes.put(destination, index);
+        }
+        index.add(position);
+    }
+
+    public synchronized int deliver(String destination, final Listener listener) throws IOException
+    {
+        checkOpen();
+
+        Index index = indexes.remove(destination);
+        if (index == null)
+            return 0;
+
+        final int[] delivered = new int[1];
+        FrameDecoder decoder = new FrameDecoder(new MessageReceiver()
+        {
+            public void receive(Command command, Map<String, String> header, String body)
+            {
+                receive(command, header, Bodies.bytes(body));
+            }
+
+            public void receive(Command command, Map<String, String> header, byte[] body)
+            {
+                if (command == Command.MESSAGE)
+                {
+                    delivered[0]++;
+                    Bodies.message(listener, header, body);
+                }
+            }
+
+            public void disconnect() {}
+
+            public boolean isClosed() { return false; }
+        }, Integer.MAX_VALUE);  // Only frames the server already accepted
+
+        long first = segments.firstKey();
+        for (int i = 0; i < index.size; i++)
+        {
+            long position = index.positions[i];
+            if (position < first)
+                continue;   // Lost to retention
+
+            Segment s = segments.floorEntry(position).getValue();
+            int off = (int)(position - s.base);
+            int length = s.map.getInt(off);
+            int nameLength = s.map.getShort(off + 5) & 0xffff;
+
+            ByteBuffer frame = s.map.duplicate();
+            frame.limit(off + 4 + length).position(off + RECORD_HEADER + nameLength);
+            decoder.decode(frame);
+        }
+
+        append(DELIVERED, name(destination), null, 0);
+        return delivered[0];
+    }
+
+    /**
+     * Writes out everything stored and closes the queue.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (active == null)
+            return;
+
+        active.map.force();
+        active = null;
+        segments.clear();
+        indexes.clear();
+    }
+
+    /**
+     * Appends a record to the active segment, rolling it if the record will
+     * not fit.
+     *
+     * @return the position of the record in the log
+     */
+    private long append(byte type, int nameLength, ByteBuffer[] payload, int payloadLength) throws IOException
+    {
+        checkOpen();
+
+        int length = RECORD_HEADER + nameLength + payloadLength;
+        if (active.end + length > active.map.capacity())
+            roll(length);
+
+        MappedByteBuffer map = active.map;
+        int off = active.end;
+
+        map.position(off + 4);
+        map.put(type);
+        map.putShort((short) nameLength);
+        map.put(name, 0, nameLength);
+        if (payload != null)
+            for (ByteBuffer b : payload)
+                map.put(b);
+        map.putInt(off, length - 4);
+
+        active.end      = off + length;
+        active.modified = System.currentTimeMillis();
+        return active.base + off;
+    }
+
+    /**
+     * Starts a new segment, big enough for at least the given number of
+     * bytes, directly after the end of the current one.
+     */
+    private void roll(int needed) throws IOException
+    {
+        long base = 0;
+        if (active != null)
+        {
+            active.map.force();
+            base = active.base + active.end;
+        }
+
+        File f = new File(directory, String.format("%020d", base) + SUFFIX);
+        active = new Segment(base, f, map(f, Math.max(segmentSize, needed)));
+        segments.put(base, active);
+        retain();
+    }
+
+    /**
+     * Deletes the oldest segments until the log is within its limits.
+     */
+    private void retain()
+    {
+        long bytes = 0;
+        for (Segment s : segments.values())
+            bytes += s.end;
+
+        long oldest = System.currentTimeMillis() - maxAge;
+        while (segments.size() > 1)
+        {
+            Segment s = segments.firstEntry().getValue();
+            if (bytes <= maxBytes && s.modified >= oldest)
+                break;
+
+            segments.pollFirstEntry();
+            bytes -= s.end;
+            s.file.delete();
+        }
+    }
+
+    /**
+     * Reads a segment through, indexing the messages in it, and finds its
+     * end.
+     */
+    private void scan(Segment s)
+    {
+        MappedByteBuffer map = s.map;
+        int off = 0;
+        while (off + RECORD_HEADER <= map.capacity())
+        {
+            int length = map.getInt(off);
+            if (length < RECORD_HEADER - 4 || off + 4 + length > map.capacity())
+                break;
+
+            int nameLength = map.getShort(off + 5) & 0xffff;
+            byte[] b = new byte[nameLength];
+            ByteBuffer view = map.duplicate();
+            view.position(off + RECORD_HEADER);
+            view.get(b);
+            String destination = new String(b, StandardCharsets.UTF_8);
+
+            if (map.get(off + 4) == MESSAGE)
+            {
+                Index index = indexes.get(destination);
+                if (index == null)
+                {
+                    index = new Index();
+                    indexes.put(destination, index);
+                }
+                index.add(s.base + off);
+            }
+            else
+            {
+                // Everything before this was delivered
+                indexes.remove(destination);
+            }
+
+            off += 4 + length;
+        }
+        s.end = off;
+    }
+
+    /**
+     * Encodes a destination into the name buffer.
+     *
+     * @return the length of the encoded name
+     */
+    private int name(String destination) throws IOException
+    {
+        int length = FrameEncoder.utf8Length(destination);
+        if (length > 0xffff)
+            throw new IOException("Destination name too long");
+
+        if (length > name.length)
+            name = new byte[length];
+        return FrameEncoder.utf8(destination, name, 0);
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (active == null)
+            throw new IOException("Queue closed");
+    }
+
+    private static MappedByteBuffer map(File f, long size) throws IOException
+    {
+        // The mapping outlives the file handle
+        try (RandomAccessFile file = new RandomAccessFile(f, "rw"))
+        {
+            if (file.length() < size)
+                file.setLength(size);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
 }
@@ -0,0 +1,513 @@
+package net.ser1.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Decodes Stomp frames straight from bytes, as they arrive.
+ *
+ * The decoder is an incremental state machine: it can be fed any number of
+ * bytes at a time, keeps whatever it needs of a partial frame, and hands
+ * every complete frame to a MessageReceiver.  Lines and bodies that arrive
+ * whole are decoded in place from the caller's buffer; only frames split
+ * across reads are copied into the decoder's scratch space.  When a frame
+ * carries a content-length header the body is taken as one bulk range, and
+ * may contain NULs.  Bodies are handed over as bytes, and only decoded as
+ * text if the receiver asks for that.
+ *
+ * Frames are limited in size, headers and body together.  A frame that
+ * grows past the limit, or declares a content-length that would take it
+ * past the limit, is answered with an ERROR and the decoder fails: it
+ * ignores everything after it, and whoever feeds it should close the
+ * connection.  Space for a body is only allocated as its bytes arrive, so
+ * a frame that declares a large content-length costs nothing until it is
+ * actually sent.
+ *
+ * Header names and values are unescaped once the peer has agreed to speak
+ * 1.2, which the decoder sees for itself: from the accept-version of a
+ * CONNECT, negotiated as the server will, or from the version of a
+ * CONNECTED.  Until then, and in the frames that negotiate, they are taken
+ * as they are, with surrounding whitespace trimmed as 1.0 has it.
+ *
+ * A decoder holds the state of a single connection and is not thread safe.
+ * It is used by both the blocking Receiver and the SelectorEngine.
+ */
+class FrameDecoder
+{
+    private static final int COMMAND = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY    = 2;
+    private static final int TRAILER = 3;
+    private static final int SKIP    = 4;
+    private static final int FAILED  = 5;
+
+    /**
+     * The largest frame accepted unless another limit is given.
+     */
+    static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final MessageReceiver receiver;
+    private final int             maxFrameSize;
+
+    private int                 state = COMMAND;
+    private Command             command;
+    private Headers             headers;
+    private int                 contentLength;
+    private int                 frameSize;
+    private boolean             escaped;
+    private boolean             unescape;
+
+    private byte[] line = new byte[256];
+    private int    lineLength;
+    private byte[] body = new byte[1024];
+    private int    bodyLength;
+    private byte[] unescaped = new byte[256];
+
+    private byte[] chunk;
+
+    FrameDecoder(MessageReceiver receiver)
+    {
+        this(receiver, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize The most bytes a frame may take, from the first
+     *  byte of its command to the NUL that ends it
+     */
+    FrameDecoder(MessageReceiver receiver, int maxFrameSize)
+    {
+        this.receiver     = receiver;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * True once a frame has been refused for being too large.  Nothing more
+     * is decoded, and the connection should be closed.
+     */
+    boolean failed()
+    {
+        return state == FAILED;
+    }
+
+    /**
+     * Consumes every remaining byte of the buffer, dispatching each frame
+     * that it completes.
+     */
+    void decode(ByteBuffer in)
+    {
+        if (in.hasArray())
+        {
+            decode(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            in.position(in.limit());
+            return;
+        }
+
+        if (chunk == null)
+            chunk = new byte[8192];
+
+        while (in.hasRemaining())
+        {
+            int n = Math.min(chunk.length, in.remaining());
+            in.get(chunk, 0, n);
+            decode(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Consumes the given bytes, dispatching each frame that they complete.
+     */
+    void decode(byte[] buf, int offset, int length)
+    {
+        int i   = offset;
+        int end = offset + length;
+
+        while (i < end)
+        {
+            switch (state)
+            {
+                case COMMAND:
+                case HEADERS:
+                {
+                    int nl = indexOf(buf, i, end, (byte) '\n');
+                    if (!consume((nl < 0 ? end : nl + 1) - i))
+                        break;
+                    if (nl < 0)
+                    {
+                        appendLine(buf, i, end - i);
+                        i = end;
+                        break;
+                    }
+
+                    if (lineLength == 0)
+                    {
+                        line(buf, i, nl - i);
+                    }
+                    else
+                    {
+                        appendLine(buf, i, nl - i);
+                        int n = lineLength;
+                        lineLength = 0;
+                        line(line, 0, n);
+                    }
+                    i = nl + 1;
+                    break;
+                }
+
+                case BODY:
+                {
+                    if (contentLength >= 0)
+                    {
+                        // The declared length was checked against the limit
+                        // when the header was read
+                        int n = Math.min(contentLength - bodyLength, end - i);
+                        if (bodyLength == 0 && n == contentLength)
+                        {
+                            // The whole body is here; decode it in place
+                            dispatch(buf, i, n);
+                            bodyLength = n;
+                        }
+                        else
+                        {
+                            appendBody(buf, i, n);
+                            if (bodyLength == contentLength)
+                                dispatch(body, 0, bodyLength);
+                        }
+                        i += n;
+                        if (bodyLength == contentLength)
+                            state = TRAILER;
+                    }
+                    else
+                    {
+                        int nul = indexOf(buf, i, end, (byte) 0);
+                        if (!consume((nul < 0 ? end : nul) - i))
+                            break;
+                        if (nul < 0)
+                        {
+                            appendBody(buf, i, end - i);
+                            i = end;
+                        }
+                        else
+                        {
+                            if (bodyLength == 0)
+                            {
+                                dispatch(buf, i, nul - i);
+                            }
+                            else
+                            {
+                                appendBody(buf, i, nul - i);
+                                dispatch(body, 0, bodyLength);
+                            }
+                            reset();
+                            i = nul + 1;
+                        }
+                    }
+                    break;
+                }
+
+                case TRAILER:
+                {
+                    if (buf[i++] == 0)
+                    {
+                        reset();
+                    }
+                    else
+                    {
+                        error("Frame body longer than its content-length");
+                        state = SKIP;
+                    }
+                    break;
+                }
+
+                case SKIP:
+                {
+                    int nul = indexOf(buf, i, end, (byte) 0);
+                    if (nul < 0)
+                    {
+                        i = end;
+                    }
+                    else
+                    {
+                        reset();
+                        i = nul + 1;
+                    }
+                    break;
+                }
+
+                case FAILED:
+                {
+                    i = end;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts bytes taken into the current frame, and fails the frame if
+     * that takes it past the limit.
+     *
+     * @return false if the frame is too large
+     */
+    private boolean consume(int n)
+    {
+        frameSize += n;
+        if (frameSize >= 0 && frameSize <= maxFrameSize)
+            return true;
+
+        fail();
+        return false;
+    }
+
+    /**
+     * Refuses the current frame, and everything after it.
+     */
+    private void fail()
+    {
+        error("Frame too large: the limit is " + maxFrameSize + " bytes");
+        state      = FAILED;
+        command    = null;
+        headers    = null;
+        line       = new byte[0];
+        lineLength = 0;
+        body       = EMPTY;
+        bodyLength = 0;
+    }
+
+    /**
+     * Handles a complete command or header line, without its EOL.
+     */
+    private void line(byte[] buf, int offset, int length)
+    {
+        if (length > 0 && buf[offset + length - 1] == '\r')
+            length--;
+
+        if (state == COMMAND)
+        {
+            if (length == 0)
+            {
+                // A bare EOL between frames is a heart-beat
+                frameSize = 0;
+                receive(Command.HEARTBEAT, null, null);
+                return;
+            }
+
+            command = Command.parse(buf, offset, length);
+            if (command == null)
+            {
+                error("Unrecognised command: " + new String(buf, offset, length, StandardCharsets.UTF_8).trim());
+                state = SKIP;
+                return;
+            }
+
+            headers       = new Headers();
+            contentLength = -1;
+            unescape      = escaped && Versions.escapes(command);
+            state         = HEADERS;
+        }
+        else if (length == 0)
+        {
+            bodyLength = 0;
+            state      = BODY;
+        }
+        else
+        {
+            int colon = indexOf(buf, offset, offset + length, (byte) ':');
+            if (colon < 0)
+                return;
+
+            int keyStart, keyEnd, valueStart, valueEnd;
+            if (unescape)
+            {
+                // Whitespace is part of the name and value
+                keyStart   = offset;
+                keyEnd     = colon;
+                valueStart = colon + 1;
+                valueEnd   = offset + length;
+                if (indexOf(buf, keyStart, valueEnd, (byte) '\\') >= 0)
+                {
+                    keyEnd     = unescape(buf, keyStart, keyEnd, 0);
+                    valueEnd   = unescape(buf, valueStart, valueEnd, keyEnd);
+                    valueStart = keyEnd;
+                    keyStart   = 0;
+                    buf        = unescaped;
+                }
+            }
+            else
+            {
+                keyStart   = skipSpace(buf, offset, colon);
+                keyEnd     = trimSpace(buf, keyStart, colon);
+                valueStart = skipSpace(buf, colon + 1, offset + length);
+                valueEnd   = trimSpace(buf, valueStart, offset + length);
+            }
+
+            // Repeated headers: the first one wins
+            String key = headers.add(buf, keyStart, keyEnd - keyStart, valueStart, valueEnd - valueStart);
+            if ("content-length".equals(key))
+            {
+                contentLength = parseLength(buf, valueStart, valueEnd);
+
+                // The body and its NUL must fit in what is left
+                if (contentLength > maxFrameSize - frameSize - 1)
+                    fail();
+            }
+        }
+    }
+
+    /**
+     * Copies a range of a header line into the unescaped array, turning
+     * escape sequences back into what they stand for.  A backslash that
+     * starts no known sequence is kept as it is.
+     *
+     * @return the index in unescaped just past what was copied
+     */
+    private int unescape(byte[] buf, int start, int end, int at)
+    {
+        if (at + end - start > unescaped.length)
+            unescaped = Arrays.copyOf(unescaped, Math.max(unescaped.length * 2, at + end - start));
+
+        for (int i = start; i < end; i++)
+        {
+            byte b = buf[i];
+            if (b == '\\' && i + 1 < end)
+            {
+                switch (buf[i + 1])
+                {
+                    case 'n':  b = '\n';  i++; break;
+                    case 'r':  b = '\r';  i++; break;
+                    case 'c':  b = ':';   i++; break;
+                    case '\\': b = '\\'; i++; break;
+                    default:   break;
+                }
+            }
+            unescaped[at++] = b;
+        }
+        return at;
+    }
+
+    /**
+     * The first index from start that is not whitespace, as String.trim()
+     * sees it.
+     */
+    private static int skipSpace(byte[] buf, int start, int end)
+    {
+        while (start < end && (buf[start] & 0xff) <= ' ')
+            start++;
+        return start;
+    }
+
+    /**
+     * The end of the range once trailing whitespace is dropped.
+     */
+    private static int trimSpace(byte[] buf, int start, int end)
+    {
+        while (end > start && (buf[end - 1] & 0xff) <= ' ')
+            end--;
+        return end;
+    }
+
+    /**
+     * A content-length value, or -1 if it is not a number.  Values too
+     * large for an int are Integer.MAX_VALUE.
+     */
+    private static int parseLength(byte[] buf, int start, int end)
+    {
+        if (start == end)
+            return -1;
+
+        long n = 0;
+        for (int i = start; i < end; i++)
+        {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                return -1;
+            n = Math.min(n * 10 + d, Integer.MAX_VALUE);
+        }
+        return (int) n;
+    }
+
+    private void dispatch(byte[] buf, int offset, int length)
+    {
+        // Frames after these are escaped if the version agreed on says so
+        if (command == Command.CONNECT || command == Command.STOMP)
+            escaped = Versions.escapes(Versions.negotiate(headers.get("accept-version")));
+        else if (command == Command.CONNECTED)
+            escaped = Versions.escapes(headers.get("version"));
+
+        byte[] b = length == 0 ? EMPTY : Arrays.copyOfRange(buf, offset, offset + length);
+        try
+        {
+            receiver.receive(command, headers, b);
+        }
+        catch (Exception e) {}
+    }
+
+    private void error(String message)
+    {
+        receive(Command.ERROR, null, message + "\n");
+    }
+
+    private void receive(Command c, Map<String, String> h, String b)
+    {
+        try
+        {
+            receiver.receive(c, h, b);
+        }
+        catch (Exception e) {}
+    }
+
+    private void reset()
+    {
+        state      = COMMAND;
+        command    = null;
+        headers    = null;
+        bodyLength = 0;
+        frameSize  = 0;
+
+        // Don't hang on to the scratch space of one huge frame
+        if (body.length > 65536)
+            body = new byte[1024];
+    }
+
+    /**
+     * Keeps the part of a line that has arrived so far.
+     */
+    private void appendLine(byte[] buf, int offset, int length)
+    {
+        if (lineLength + length > line.length)
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+
+        System.arraycopy(buf, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    /**
+     * Keeps the part of a body that has arrived so far.  The space grows
+     * with what has arrived, never past a declared content-length, rather
+     * than being taken up front for whatever length the header claims.
+     */
+    private void appendBody(byte[] buf, int offset, int length)
+    {
+        if (bodyLength + length > body.length)
+        {
+            int size = Math.max(body.length * 2, bodyLength + length);
+            if (contentLength >= 0)
+                size = Math.min(size, contentLength);
+            body = Arrays.copyOf(body, size);
+        }
+
+        System.arraycopy(buf, offset, body, bodyLength, length);
+        bodyLength += length;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b)
+    {
+        for (int i = from; i < to; i++)
+            if (buf[i] == b)
+                return i;
+        return -1;
+    }
+}
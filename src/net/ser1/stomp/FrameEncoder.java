@@ -0,0 +1,604 @@
+package net.ser1.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes Stomp frames straight into bytes.
+ *
+ * The command, headers, and small bodies are written into a scratch array
+ * that is reused for every frame encoded on the same thread, so encoding a
+ * typical frame allocates nothing.  Bodies larger than INLINE_BODY_LIMIT are
+ * never copied into the scratch array.  A frame from share() or copy()
+ * keeps such a body, with its NUL, in an array of its own, encoded or
+ * copied there once, and encode() returns it as buffers of its own, ready
+ * for a gathering write.
+ *
+ * Header names and values are escaped for peers that speak 1.2, in every
+ * frame but those that negotiate the version.  For 1.0 peers they go out
+ * as they are, except that CR and LF, which would end the header, become
+ * spaces.
+ *
+ * The buffers returned by encode() belong to the encoder, or to the caller
+ * for a large body of bytes, and are only valid until the next frame is
+ * encoded on the same thread.
+ */
+class FrameEncoder
+{
+    /**
+     * Bodies of more than this many characters, or bytes, are not copied
+     * into the header buffer.
+     */
+    static final int INLINE_BODY_LIMIT = 4096;
+
+    private static final byte[] NUL = { 0 };
+
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_RETAINED = 65536;
+
+    private static final ThreadLocal<FrameEncoder> LOCAL = new ThreadLocal<FrameEncoder>()
+    {
+        @Override
+        protected FrameEncoder initialValue()
+        {
+            return new FrameEncoder();
+        }
+    };
+
+    private byte[]             head   = new byte[INITIAL_SIZE];
+    private ByteBuffer         headBuffer;
+    private int                length;
+    private boolean            escape;
+    private boolean            special;
+    private final ByteBuffer[] one    = new ByteBuffer[1];
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final ByteBuffer[] triple = new ByteBuffer[3];
+
+    /**
+     * The encoder for the calling thread.
+     */
+    static FrameEncoder local()
+    {
+        return LOCAL.get();
+    }
+
+    /**
+     * True if the last frame encoded has a header that a peer speaking 1.2
+     * is sent differently from one speaking 1.0.
+     */
+    boolean escapingMatters()
+    {
+        return special;
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @return the frame as one buffer, or as a header buffer followed by a
+     *  body buffer for large bodies.
+     */
+    ByteBuffer[] encode(Command command, Map<String, String> header, String body)
+    {
+        escape = false;
+        start(command, header);
+        put((byte) '\n');
+
+        if (isLarge(body))
+        {
+            gather[0] = headBuffer();
+            gather[1] = ByteBuffer.wrap(bodyOf(body));
+            return gather;
+        }
+
+        if (body != null)
+            put(body);
+        put((byte) 0);
+
+        one[0] = headBuffer();
+        return one;
+    }
+
+    /**
+     * Encodes a frame with a body of bytes, adding a content-length header
+     * if the body holds a NUL and there is not one, so that the body may
+     * hold anything.
+     *
+     * @return the frame as one buffer, or for a large body as a header
+     *  buffer, the body itself, and the NUL that ends the frame
+     */
+    ByteBuffer[] encode(Command command, Map<String, String> header, byte[] body)
+    {
+        escape = false;
+        if (isLarge(body))
+        {
+            lines(command, header, body);
+            triple[0] = headBuffer();
+            triple[1] = ByteBuffer.wrap(body);
+            triple[2] = ByteBuffer.wrap(NUL);
+            return triple;
+        }
+
+        whole(command, header, body);
+        one[0] = headBuffer();
+        return one;
+    }
+
+    /**
+     * A view of the encoded part of the header array.
+     */
+    private ByteBuffer headBuffer()
+    {
+        if (headBuffer == null || headBuffer.array() != head)
+            headBuffer = ByteBuffer.wrap(head);
+
+        headBuffer.limit(length).position(0);
+        return headBuffer;
+    }
+
+    /**
+     * Encodes a frame once, into bytes of its own, for writing to many
+     * connections.
+     */
+    EncodedFrame share(Command command, Map<String, String> header, String body)
+    {
+        return share(command, header, body, false);
+    }
+
+    /**
+     * Encodes a frame once for writing to many connections, escaping its
+     * headers if the connections speak 1.2.
+     */
+    EncodedFrame share(Command command, Map<String, String> header, String body, boolean escape)
+    {
+        this.escape = escape;
+        if (isLarge(body))
+            return share(lines(command, header), bodyOf(body));
+
+        int headLength = whole(command, header, body);
+        return share(headLength, null);
+    }
+
+    /**
+     * Encodes a frame with a body of bytes once, for writing to many
+     * connections.
+     */
+    EncodedFrame share(Command command, Map<String, String> header, byte[] body)
+    {
+        return share(command, header, body, false);
+    }
+
+    EncodedFrame share(Command command, Map<String, String> header, byte[] body, boolean escape)
+    {
+        this.escape = escape;
+        if (isLarge(body))
+            return share(lines(command, header, body), bodyOf(body));
+
+        int headLength = whole(command, header, body);
+        return share(headLength, null);
+    }
+
+    /**
+     * What is in the scratch array, in a pooled array, followed by the
+     * body if it is kept apart.
+     */
+    private EncodedFrame share(int headLength, byte[] body)
+    {
+        byte[] b = EncodedFrame.allocate(length);
+        System.arraycopy(head, 0, b, 0, length);
+        return new EncodedFrame(b, length, headLength, body);
+    }
+
+    /**
+     * Encodes a frame into bytes of exactly its own size, rather than a
+     * pooled array, for frames that may sit in a queue for a while.
+     */
+    EncodedFrame copy(Command command, Map<String, String> header, String body)
+    {
+        return copy(command, header, body, false);
+    }
+
+    /**
+     * The same, escaping the frame's headers for a peer that speaks 1.2.
+     */
+    EncodedFrame copy(Command command, Map<String, String> header, String body, boolean escape)
+    {
+        this.escape = escape;
+        if (isLarge(body))
+            return copy(lines(command, header), bodyOf(body));
+
+        int headLength = whole(command, header, body);
+        return copy(headLength, null);
+    }
+
+    EncodedFrame copy(Command command, Map<String, String> header, byte[] body)
+    {
+        return copy(command, header, body, false);
+    }
+
+    EncodedFrame copy(Command command, Map<String, String> header, byte[] body, boolean escape)
+    {
+        this.escape = escape;
+        if (isLarge(body))
+            return copy(lines(command, header, body), bodyOf(body));
+
+        int headLength = whole(command, header, body);
+        return copy(headLength, null);
+    }
+
+    private EncodedFrame copy(int headLength, byte[] body)
+    {
+        return new EncodedFrame(Arrays.copyOf(head, length), length, headLength, body);
+    }
+
+    private static boolean isLarge(String body)
+    {
+        return body != null && body.length() > INLINE_BODY_LIMIT;
+    }
+
+    private static boolean isLarge(byte[] body)
+    {
+        return body != null && body.length > INLINE_BODY_LIMIT;
+    }
+
+    /**
+     * A large body and its NUL, in an array of their own.  Bytes are copied,
+     * since the caller may reuse its array once the frame is queued.
+     */
+    private static byte[] bodyOf(String body)
+    {
+        byte[] b = new byte[utf8Length(body) + 1];
+        utf8(body, b, 0);
+        return b;
+    }
+
+    private static byte[] bodyOf(byte[] body)
+    {
+        return Arrays.copyOf(body, body.length + 1);
+    }
+
+    /**
+     * Encodes the command and header lines, and the blank line after them,
+     * into the scratch array.
+     *
+     * @return the length of the command and header lines
+     */
+    private int lines(Command command, Map<String, String> header)
+    {
+        start(command, header);
+
+        int headLength = length;
+        put((byte) '\n');
+        return headLength;
+    }
+
+    /**
+     * The same for a body of bytes, adding a content-length header if the
+     * body holds a NUL.
+     */
+    private int lines(Command command, Map<String, String> header, byte[] body)
+    {
+        start(command, header);
+
+        // Bodies without a NUL are left to end at the terminating one, so
+        // text costs no more on the wire than it did as a String
+        if (body != null && hasNul(body) && (header == null || !header.containsKey("content-length")))
+        {
+            put(CONTENT_LENGTH);
+            put(Integer.toString(body.length));
+            put((byte) '\n');
+        }
+
+        int headLength = length;
+        put((byte) '\n');
+        return headLength;
+    }
+
+    /**
+     * Encodes a whole frame into the scratch array.
+     *
+     * @return the length of the command and header lines
+     */
+    private int whole(Command command, Map<String, String> header, String body)
+    {
+        int headLength = lines(command, header);
+        if (body != null)
+            put(body);
+        put((byte) 0);
+        return headLength;
+    }
+
+    private int whole(Command command, Map<String, String> header, byte[] body)
+    {
+        int headLength = lines(command, header, body);
+        if (body != null)
+            put(body);
+        put((byte) 0);
+        return headLength;
+    }
+
+    private static boolean hasNul(byte[] body)
+    {
+        for (byte b : body)
+            if (b == 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Encodes a single header line, with its EOL.
+     *
+     * @param escape True if the line is for a peer that speaks 1.2
+     */
+    static byte[] header(String key, String value, boolean escape)
+    {
+        key   = escape(key, escape);
+        value = escape(value, escape);
+
+        byte[] b = new byte[utf8Length(key) + utf8Length(value) + 2];
+        int off = utf8(key, b, 0);
+        b[off++] = ':';
+        off = utf8(value, b, off);
+        b[off] = '\n';
+        return b;
+    }
+
+
+    /**
+     * A header name or value as it is written for a peer, escaped or with
+     * EOLs flattened.
+     */
+    private static String escape(String s, boolean escape)
+    {
+        int n = s.length();
+        int i = 0;
+        while (i < n && !isSpecial(s.charAt(i)))
+            i++;
+        if (i == n)
+            return s;
+
+        StringBuilder b = new StringBuilder(n + 8).append(s, 0, i);
+        for (; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (!isSpecial(c))
+                b.append(c);
+            else if (!escape)
+                b.append(c == '\n' || c == '\r' ? ' ' : c);
+            else
+                b.append('\\').append(escapeOf(c));
+        }
+        return b.toString();
+    }
+
+    private static boolean isSpecial(int c)
+    {
+        return c == '\n' || c == '\r' || c == ':' || c == '\\';
+    }
+
+    /**
+     * The character after the backslash in the escape sequence for c.
+     */
+    private static char escapeOf(int c)
+    {
+        switch (c)
+        {
+            case '\n': return 'n';
+            case '\r': return 'r';
+            case ':':  return 'c';
+            default:   return '\\';
+        }
+    }
+
+    /**
+     * Escapes what has been put since the given index, a header name or
+     * value, or for a 1.0 peer flattens its EOLs to spaces.
+     */
+    private void escapeFrom(int from)
+    {
+        int n = 0;
+        for (int i = from; i < length; i++)
+            if (isSpecial(head[i]))
+                n++;
+        if (n == 0)
+            return;
+
+        special = true;
+        if (!escape)
+        {
+            // 1.0 has no way to carry an EOL in a header; it would end it
+            for (int i = from; i < length; i++)
+                if (head[i] == '\n' || head[i] == '\r')
+                    head[i] = ' ';
+            return;
+        }
+
+        // Each special byte grows by one; shift from the end
+        ensure(n);
+        int src = length - 1;
+        int dst = length + n - 1;
+        length += n;
+        while (src >= from)
+        {
+            byte b = head[src--];
+            if (isSpecial(b))
+            {
+                head[dst--] = (byte) escapeOf(b);
+                head[dst--] = '\\';
+            }
+            else
+            {
+                head[dst--] = b;
+            }
+        }
+    }
+
+    /**
+     * Starts a new frame with the command and header lines, up to but not
+     * including the blank line before the body.
+     */
+    private void start(Command command, Map<String, String> header)
+    {
+        if (head.length > MAX_RETAINED)
+            head = new byte[INITIAL_SIZE];
+
+        length  = 0;
+        special = false;
+        escape  = escape && Versions.escapes(command);
+        put(command.bytes);
+        put((byte) '\n');
+
+        if (header instanceof Headers)
+        {
+            // Values read from a frame and not changed go out as they came
+            Headers h = (Headers) header;
+            for (int i = 0; i < h.size(); i++)
+            {
+                int from = length;
+                put(h.keyAt(i));
+                escapeFrom(from);
+                put((byte) ':');
+                from = length;
+                int off = h.rawOffset(i);
+                if (off >= 0)
+                    put(h.raw(), off, h.rawLength(i));
+                else
+                    put(h.valueAt(i));
+                escapeFrom(from);
+                put((byte) '\n');
+            }
+        }
+        else if (header != null)
+        {
+            for (Map.Entry<String, String> e : header.entrySet())
+            {
+                int from = length;
+                put(e.getKey());
+                escapeFrom(from);
+                put((byte) ':');
+                from = length;
+                put(e.getValue());
+                escapeFrom(from);
+                put((byte) '\n');
+            }
+        }
+    }
+
+    private void put(byte b)
+    {
+        ensure(1);
+        head[length++] = b;
+    }
+
+    private void put(byte[] b)
+    {
+        put(b, 0, b.length);
+    }
+
+    private void put(byte[] b, int off, int len)
+    {
+        ensure(len);
+        System.arraycopy(b, off, head, length, len);
+        length += len;
+    }
+
+    private void put(String s)
+    {
+        if (s == null)
+            return;
+
+        ensure(s.length() * 3);
+        length = utf8(s, head, length);
+    }
+
+    private void ensure(int n)
+    {
+        if (length + n > head.length)
+        {
+            byte[] bigger = new byte[Math.max(head.length * 2, length + n)];
+            System.arraycopy(head, 0, bigger, 0, length);
+            head = bigger;
+        }
+    }
+
+    /**
+     * The number of bytes needed to encode a string as UTF-8.
+     */
+    static int utf8Length(String s)
+    {
+        int n = s.length();
+        int bytes = n;
+        for (int i = 0; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (Character.isSurrogate(c))
+            {
+                // A pair is four bytes for two chars; a lone one becomes '?'
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+                {
+                    bytes += 2;
+                    i++;
+                }
+            }
+            else if (c >= 0x800)
+            {
+                bytes += 2;
+            }
+            else if (c >= 0x80)
+            {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes a string as UTF-8 into an array that is known to be big
+     * enough.  Unpaired surrogates are encoded as '?', as String.getBytes()
+     * does.
+     *
+     * @return the offset just past the last byte written
+     */
+    static int utf8(String s, byte[] dst, int off)
+    {
+        int n = s.length();
+        for (int i = 0; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                dst[off++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                dst[off++] = (byte) (0xC0 | (c >> 6));
+                dst[off++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+                {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dst[off++] = (byte) (0xF0 | (cp >> 18));
+                    dst[off++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dst[off++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dst[off++] = (byte) (0x80 | (cp & 0x3F));
+                }
+                else
+                {
+                    dst[off++] = (byte) '?';
+                }
+            }
+            else
+            {
+                dst[off++] = (byte) (0xE0 | (c >> 12));
+                dst[off++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[off++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return off;
+    }
+}
@@ -0,0 +1,224 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ring of frames, written by any number of threads and read by one
+ * thread of its own, which hands each frame to a MessageReceiver.
+ *
+ * The ring is allocated once.  A producer claims the next sequence number
+ * with a single atomic increment, fills the slot that number maps to, and
+ * publishes it by storing the number in the slot's entry of an array of
+ * sequences; nothing is allocated and no lock is taken.  The reader takes
+ * every published slot in order, as many as there are, before it tells
+ * producers the slots are free again, and only sleeps when the ring is
+ * empty.  A producer that finds the ring full waits for the reader to
+ * catch up.
+ *
+ * Closing sets a bit in the claimed sequence, with the same atomic
+ * operations producers claim with, so once the ring is closed no more
+ * slots are claimed, and the reader knows exactly how many it must still
+ * wait for before it stops.
+ */
+class FrameRing implements Runnable
+{
+    private static final int SPINS = 100;
+
+    /**
+     * Set in claimed once the ring is closed.
+     */
+    private static final long CLOSED = 1L << 62;
+
+    private final Command[]             commands;
+    private final Map<String, String>[] headers;
+    private final Object[]              bodies;     // String or byte[]
+    private final AtomicLongArray       published;
+    private final int                   mask;
+    private final MessageReceiver       receiver;
+
+    private final AtomicLong claimed  = new AtomicLong();
+    private volatile long    consumed;
+    private volatile boolean waiting;
+    private final Thread     thread;
+
+    /**
+     * Starts a ring and its reader.
+     *
+     * @param capacity The number of slots, rounded up to a power of two
+     * @param receiver Given every frame, on the ring's thread
+     * @param name The name of the ring's thread
+     */
+    @SuppressWarnings("unchecked")
+    FrameRing(int capacity, MessageReceiver receiver, String name)
+    {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("bad capacity: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        this.commands  = new Command[size];
+        this.headers   = (Map<String, String>[]) new Map<?, ?>[size];
+        this.bodies    = new Object[size];
+        this.published = new AtomicLongArray(size);
+        this.mask      = size - 1;
+        this.receiver  = receiver;
+
+        // Slot i is first used by sequence i, so mark none as published
+        for (int i = 0; i < size; i++)
+            published.set(i, i - size);
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds a frame to the ring, waiting for room if it is full.  The header
+     * map is handed over: the caller must not change it afterwards.  Frames
+     * added by the ring's own thread are handled at once instead.
+     *
+     * @param body A String, a byte[], or null
+     * @return false if the ring has been closed, and the frame dropped
+     */
+    boolean publish(Command command, Map<String, String> header, Object body)
+    {
+        if (closed())
+            return false;
+
+        // A listener called from the ring, sending: the ring may be full,
+        // and only this thread can empty it
+        if (Thread.currentThread() == thread)
+        {
+            handle(command, header, body);
+            return true;
+        }
+
+        // Once claimed, a slot is read even if the ring closes meanwhile
+        long seq;
+        do
+        {
+            seq = claimed.get();
+            if ((seq & CLOSED) != 0)
+                return false;
+        }
+        while (!claimed.compareAndSet(seq, seq + 1));
+
+        long wrap = seq - commands.length;
+        while (wrap >= consumed)
+            LockSupport.parkNanos(this, 1000);
+
+        int i = (int) seq & mask;
+        commands[i] = command;
+        headers[i]  = header;
+        bodies[i]   = body;
+        published.set(i, seq);
+
+        if (waiting)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Stops the ring once the frames already in it have been handled,
+     * waiting at most the given time for that.
+     */
+    void close(long timeout)
+    {
+        long c;
+        do
+        {
+            c = claimed.get();
+        }
+        while ((c & CLOSED) == 0 && !claimed.compareAndSet(c, c | CLOSED));
+        LockSupport.unpark(thread);
+
+        if (Thread.currentThread() == thread)
+            return;
+        try
+        {
+            thread.join(timeout);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        long next = 0;
+        int idle = 0;
+        while (true)
+        {
+            int i = (int) next & mask;
+            if (published.get(i) != next)
+            {
+                // Closed, and every slot claimed before that has been read
+                if (claimed.get() == (next | CLOSED))
+                    break;
+
+                // Spin a little before sleeping; frames tend to come in runs
+                if (++idle < SPINS)
+                {
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                // Producers check the flag after publishing, and we check
+                // the slot after setting it, so no wake-up is missed
+                waiting = true;
+                if (published.get(i) != next && !closed())
+                    LockSupport.park(this);
+                waiting = false;
+                continue;
+            }
+            idle = 0;
+
+            // Take every frame published so far before freeing their slots
+            long end = next;
+            do
+            {
+                Command             command = commands[i];
+                Map<String, String> header  = headers[i];
+                Object              body    = bodies[i];
+                commands[i] = null;
+                headers[i]  = null;
+                bodies[i]   = null;
+
+                try
+                {
+                    handle(command, header, body);
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace(System.err);
+                }
+
+                end++;
+                i = (int) end & mask;
+            }
+            while (end - next < commands.length && published.get(i) == end);
+
+            next = end;
+            consumed = next;
+        }
+    }
+
+    private boolean closed()
+    {
+        return (claimed.get() & CLOSED) != 0;
+    }
+
+    private void handle(Command command, Map<String, String> header, Object body)
+    {
+        if (body instanceof byte[])
+            receiver.receive(command, header, (byte[]) body);
+        else
+            receiver.receive(command, header, (String) body);
+    }
+}
@@ -0,0 +1,324 @@
+package net.ser1.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The headers of a frame.
+ *
+ * A frame has a handful of headers, so they are kept in parallel arrays,
+ * in the order they were added, and found by a scan rather than a hash
+ * table; there is no entry object per header.  The names of the common
+ * headers are shared constants, which are found by identity first.
+ *
+ * Headers read from the wire keep their values as the bytes they arrived
+ * as, all in one array per frame.  A value is only decoded when something
+ * asks for it, and a value nobody changed is written out again as the same
+ * bytes when the frame is relayed, so routing a message decodes no more
+ * than the headers the router looks at.
+ *
+ * Headers is a Map, so listeners use it as they always have.  Like a
+ * HashMap it is not thread safe, but once it is no longer being changed any
+ * number of threads may read it.
+ */
+public class Headers extends AbstractMap<String, String>
+{
+    private static final String[] COMMON =
+    {
+        "destination", "receipt", "receipt-id", "id", "ack", "content-length",
+        "content-type", "message-id", "subscription", "transaction", "login",
+        "passcode", "client-id", "heart-beat", "session", "message",
+        "prefetch-count", "expires"
+    };
+
+    private static final byte[][] COMMON_BYTES = new byte[COMMON.length][];
+    static
+    {
+        for (int i = 0; i < COMMON.length; i++)
+            COMMON_BYTES[i] = COMMON[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String[] keys;
+    private String[] values;    // Decoded values; null until asked for, if raw
+    private int[]    offsets;   // Of raw values in raw, or -1 if set by put()
+    private int[]    lengths;
+    private byte[]   raw;
+    private int      rawLength;
+    private int      size;
+
+    public Headers()
+    {
+        this(8);
+    }
+
+    public Headers(Map<String, String> headers)
+    {
+        this(Math.max(8, headers.size()));
+        putAll(headers);
+    }
+
+    private Headers(int capacity)
+    {
+        keys    = new String[capacity];
+        values  = new String[capacity];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Adds a header read from a frame, copying the value's bytes, unless
+     * there already is one by that name: the first one wins.
+     *
+     * @return the header's name, or null if it was already there
+     */
+    String add(byte[] buf, int keyOffset, int keyLength, int valueOffset, int valueLength)
+    {
+        String key = key(buf, keyOffset, keyLength);
+        if (indexOf(key) >= 0)
+            return null;
+
+        if (raw == null)
+            raw = new byte[Math.max(64, valueLength)];
+        else if (rawLength + valueLength > raw.length)
+            raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + valueLength));
+        System.arraycopy(buf, valueOffset, raw, rawLength, valueLength);
+
+        int i = append(key);
+        offsets[i] = rawLength;
+        lengths[i] = valueLength;
+        rawLength += valueLength;
+        return key;
+    }
+
+    /**
+     * The name of a header, as one of the shared constants if it is a
+     * common one.
+     */
+    private static String key(byte[] buf, int offset, int length)
+    {
+        for (int i = 0; i < COMMON_BYTES.length; i++)
+        {
+            byte[] k = COMMON_BYTES[i];
+            if (k.length == length && Arrays.equals(k, 0, length, buf, offset, offset + length))
+                return COMMON[i];
+        }
+        return new String(buf, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(Object key)
+    {
+        for (int i = 0; i < size; i++)
+            if (keys[i] == key)
+                return i;
+        if (key == null)
+            return -1;
+        for (int i = 0; i < size; i++)
+            if (key.equals(keys[i]))
+                return i;
+        return -1;
+    }
+
+    private int append(String key)
+    {
+        if (size == keys.length)
+        {
+            int n = size * 2;
+            keys    = Arrays.copyOf(keys, n);
+            values  = Arrays.copyOf(values, n);
+            offsets = Arrays.copyOf(offsets, n);
+            lengths = Arrays.copyOf(lengths, n);
+        }
+        keys[size]   = key;
+        values[size] = null;
+        return size++;
+    }
+
+    private void removeAt(int i)
+    {
+        int moved = size - i - 1;
+        System.arraycopy(keys, i + 1, keys, i, moved);
+        System.arraycopy(values, i + 1, values, i, moved);
+        System.arraycopy(offsets, i + 1, offsets, i, moved);
+        System.arraycopy(lengths, i + 1, lengths, i, moved);
+        size--;
+        keys[size]   = null;
+        values[size] = null;
+    }
+
+    /**
+     * When a message expires, from its "expires" header: a time in
+     * milliseconds since the epoch, as given by the server's clock.
+     *
+     * @return the time, or 0 if the message never expires
+     */
+    static long expires(Map<String, String> headers)
+    {
+        String value = headers == null ? null : headers.get("expires");
+        if (value == null)
+            return 0;
+
+        try
+        {
+            return Math.max(0, Long.parseLong(value.trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    String keyAt(int i)
+    {
+        return keys[i];
+    }
+
+    /**
+     * The value of the i'th header, decoded the first time it is asked for.
+     * Threads racing to decode it each get an equal String.
+     */
+    String valueAt(int i)
+    {
+        String v = values[i];
+        if (v == null && offsets[i] >= 0)
+        {
+            v = new String(raw, offsets[i], lengths[i], StandardCharsets.UTF_8);
+            values[i] = v;
+        }
+        return v;
+    }
+
+    /**
+     * Where the i'th value's bytes are in raw(), or -1 if it was not read
+     * from a frame, or has been replaced since.
+     */
+    int rawOffset(int i)
+    {
+        return offsets[i];
+    }
+
+    int rawLength(int i)
+    {
+        return lengths[i];
+    }
+
+    byte[] raw()
+    {
+        return raw;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key)
+    {
+        int i = indexOf(key);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    @Override
+    public String put(String key, String value)
+    {
+        if (key == null)
+            throw new NullPointerException("header name");
+
+        int i = indexOf(key);
+        String old = null;
+        if (i < 0)
+            i = append(key);
+        else
+            old = valueAt(i);
+
+        values[i]  = value;
+        offsets[i] = -1;
+        return old;
+    }
+
+    @Override
+    public String remove(Object key)
+    {
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+
+        String old = valueAt(i);
+        removeAt(i);
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size      = 0;
+        rawLength = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, String>>()
+        {
+            public int size()
+            {
+                return size;
+            }
+
+            public Iterator<Map.Entry<String, String>> iterator()
+            {
+                return new Iterator<Map.Entry<String, String>>()
+                {
+                    private int next = 0;
+                    private int last = -1;
+
+                    public boolean hasNext()
+                    {
+                        return next < size;
+                    }
+
+                    public Map.Entry<String, String> next()
+                    {
+                        if (next >= size)
+                            throw new NoSuchElementException();
+
+                        last = next++;
+                        return new SimpleEntry<String, String>(keys[last], valueAt(last))
+                        {
+                            public String setValue(String value)
+                            {
+                                put(getKey(), value);
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    public void remove()
+                    {
+                        if (last < 0)
+                            throw new IllegalStateException();
+
+                        removeAt(last);
+                        next = last;
+                        last = -1;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -8,15 +8,52 @@ import java.util.Map;
  * delivered to clients connected via the network... all messages to
  * other IntraVMClients are delivered entirely in memory.
  *
+ * By default a frame sent through this client is handled by the server on
+ * the sending thread, including writing it to any network subscribers.  An
+ * asynchronous client, from Server.getAsyncClient(), instead puts frames
+ * into a ring buffer and returns at once; a thread of its own hands them
+ * to the server, in the order they were sent, so senders are not held up
+ * by slow subscribers unless the ring fills.
+ *
  * (c)2005 Sean Russell
  */
-public class IntraVMClient extends Stomp implements Listener, Authenticatable
+public class IntraVMClient extends Stomp implements BinaryListener, Authenticatable
 {
-    private Server server;
+    private Server          server;
+    private final FrameRing ring;
 
     protected IntraVMClient(Server server)
     {
         this.server = server;
+        this.ring   = null;
+        connected = true;
+    }
+
+    /**
+     * A client whose frames are handed to the server on a thread of its
+     * own.
+     *
+     * @param capacity The number of frames the ring holds
+     */
+    protected IntraVMClient(final Server server, int capacity)
+    {
+        this.server = server;
+        this.ring   = new FrameRing(capacity, new MessageReceiver()
+        {
+            public void receive(Command c, Map<String, String> h, String b)
+            {
+                server.receive(c, h, b, IntraVMClient.this);
+            }
+
+            public void receive(Command c, Map<String, String> h, byte[] b)
+            {
+                server.receive(c, h, b, IntraVMClient.this);
+            }
+
+            public void disconnect() {}
+
+            public boolean isClosed() { return false; }
+        }, "Stomp-IntraVM");
         connected = true;
     }
 
@@ -31,17 +68,43 @@ public class IntraVMClient extends Stomp implements Listener, Authenticatable
     }
 
     /**
-     * Transmit a message to clients and listeners.
+     * Transmit a message to clients and listeners.  An asynchronous client
+     * returns before the server has the message, and the header map must
+     * not be changed afterwards.
      */
     public void transmit(Command c, Map<String, String> h, String b)
     {
-        server.receive(c, h, b, this);
+        if (ring == null)
+            server.receive(c, h, b, this);
+        else if (!ring.publish(c, h, b))
+            receive(Command.ERROR, null, "Client disconnected; " + c + " not sent");
+    }
+
+    /**
+     * Transmit a message with a binary body.  The array is handed over,
+     * and must not be changed afterwards.
+     */
+    public void transmit(Command c, Map<String, String> h, byte[] b)
+    {
+        if (ring == null)
+            server.receive(c, h, b, this);
+        else if (!ring.publish(c, h, b))
+            receive(Command.ERROR, null, "Client disconnected; " + c + " not sent");
     }
 
     public void disconnect(Map<String, String> h)
     {
-        server.receive(Command.DISCONNECT, null, null, this);
+        if (ring == null)
+        {
+            server.receive(Command.DISCONNECT, null, (byte[]) null, this);
+        }
+        else
+        {
+            ring.publish(Command.DISCONNECT, null, null);
+            ring.close(1000);
+        }
         server = null;
+        connected = false;
     }
 
     public void message(Map<String, String> headers, String body)
@@ -49,9 +112,14 @@ public class IntraVMClient extends Stomp implements Listener, Authenticatable
         receive(Command.MESSAGE, headers, body);
     }
 
+    public void message(Map<String, String> headers, byte[] body)
+    {
+        receive(Command.MESSAGE, headers, body);
+    }
+
     public void receipt(Map<String, String> headers)
     {
-        receive(Command.RECEIPT, headers, null);
+        receive(Command.RECEIPT, headers, (String) null);
     }
 
     public void error(Map<String, String> headers, String body)
@@ -9,6 +9,20 @@ public interface Listener
 {
     public void message(Map<String, String> headers, String body);
 
+    /**
+     * How long, in milliseconds, a message may wait between arriving at
+     * the client and being handed to this listener.  Messages that waited
+     * longer, behind earlier ones on the listener's executor, are skipped,
+     * so a listener that falls behind catches up on current data.  0, the
+     * default, means messages never go stale.
+     */
     default public long getTimeout() { return 0; };
+
+    /**
+     * How far past its "expires" time, in milliseconds by the client's
+     * clock, a message must be before it is skipped rather than handed to
+     * this listener.  The server drops expired messages by its own clock;
+     * this allows for the client's clock being ahead of the server's.
+     */
     default public long getTimeoutThreshold() { return 100000; }
 }
\ No newline at end of file
@@ -6,7 +6,8 @@ public class Message
 {
     private final Command             command;
     private final Map<String, String> header;
-    private final String              body;
+    private String                    body;
+    private byte[]                    bytes;
 
     protected Message(Command command, Map<String, String> header, String body)
     {
@@ -15,16 +16,39 @@ public class Message
         this.body    = body;
     }
 
+    protected Message(Command command, Map<String, String> header, byte[] body)
+    {
+        this.command = command;
+        this.header  = header;
+        this.bytes   = body;
+    }
+
     public Map<String, String> headers()
     {
 	return header;
     }
 
-    public String body()
+    /**
+     * The body as text, decoded as UTF-8 if it arrived as bytes.
+     */
+    public synchronized String body()
     {
+        if (body == null && bytes != null)
+            body = Bodies.text(bytes);
         return body;
     }
 
+    /**
+     * The body as the bytes it was sent as, or encoded as UTF-8 if it
+     * arrived as text.  The array is shared, and must not be changed.
+     */
+    public synchronized byte[] bodyBytes()
+    {
+        if (bytes == null && body != null)
+            bytes = Bodies.bytes(body);
+        return bytes;
+    }
+
     public Command command()
     {
         return command;
@@ -10,4 +10,14 @@ public interface MessageReceiver
     public void receive(Command command, Map<String, String> header, String body);
     public void disconnect();
     public boolean isClosed();
-}
\ No newline at end of file
+
+    /**
+     * Receives a frame whose body is still the bytes it arrived as.
+     * Receivers that relay or store bodies without reading them should
+     * override this; by default the body is decoded as UTF-8 text.
+     */
+    default public void receive(Command command, Map<String, String> header, byte[] body)
+    {
+        receive(command, header, Bodies.text(body));
+    }
+}
@@ -0,0 +1,336 @@
+package net.ser1.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The frames waiting to be written to one client connection.
+ *
+ * Publishers only ever append to the queue; a single writer per connection
+ * takes frames off the front, in batches, so that many small frames go out
+ * in one write.  The queue also tracks whether a writer is currently
+ * responsible for it, so that exactly one writer is started when frames
+ * arrive at an idle connection.
+ *
+ * MESSAGEs are offered under a SlowConsumerPolicy, which bounds the queue
+ * and decides what happens when they do not fit.  Other frames are always
+ * queued.  A MESSAGE may also be offered to expire: if its message has
+ * expired by the time the writer reaches it, it is discarded unwritten, so
+ * a client that has fallen behind only catches up on what is still live.
+ */
+class OutboundQueue
+{
+    /**
+     * Returned by offer() when the policy says to disconnect the client.
+     */
+    static final int REJECTED = -1;
+
+    /**
+     * Returned by offer() when a writer is already draining the queue.
+     */
+    static final int QUEUED = 0;
+
+    /**
+     * Returned by offer() when the caller must start a writer.
+     */
+    static final int START_WRITER = 1;
+
+    /**
+     * Returned by offer() when the policy discarded a frame, or the
+     * connection has gone.
+     */
+    static final int DROPPED = 2;
+
+    private static final class Entry
+    {
+        final EncodedFrame frame;
+        final ByteBuffer[] buffers;
+        final int          size;
+        final boolean      droppable;
+        final boolean      expiring;
+
+        Entry(EncodedFrame frame, byte[] extraHeader, boolean droppable, boolean expire)
+        {
+            this.frame     = frame;
+            this.buffers   = frame.buffers(extraHeader);
+            this.size      = frame.length() + (extraHeader == null ? 0 : extraHeader.length);
+            this.droppable = droppable;
+            this.expiring  = expire && frame.expires() > 0;
+        }
+
+        boolean started()
+        {
+            return buffers[0].position() > 0;
+        }
+
+        boolean written()
+        {
+            return !buffers[buffers.length - 1].hasRemaining();
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long    bytes;
+    private boolean writing;
+    private boolean closed;
+    private int     corks;
+    private boolean deferred;
+    private long    queued;
+
+    /**
+     * Appends a frame that must not be dropped, taking a reference to it.
+     *
+     * @param extraHeader An encoded header line to splice into this copy
+     *  of the frame, or null.
+     * @return DROPPED if the connection has gone, QUEUED, or START_WRITER
+     */
+    synchronized int offer(EncodedFrame frame, byte[] extraHeader)
+    {
+        if (closed)
+            return DROPPED;
+
+        return add(new Entry(frame, extraHeader, false, false));
+    }
+
+    /**
+     * Appends a MESSAGE, taking a reference to it, if the policy allows.
+     *
+     * @param extraHeader An encoded header line to splice into this copy
+     *  of the frame, or null.
+     * @param expire True to discard the frame unwritten if its message
+     *  expires while it waits.  Not for frames the caller goes on tracking
+     *  until the client acknowledges them.
+     * @return REJECTED if the policy says to disconnect, DROPPED, QUEUED,
+     *  or START_WRITER
+     */
+    synchronized int offer(EncodedFrame frame, byte[] extraHeader, SlowConsumerPolicy policy, boolean expire)
+    {
+        if (closed)
+            return DROPPED;
+
+        Entry e = new Entry(frame, extraHeader, true, expire);
+        if (!fits(e, policy))
+        {
+            switch (policy.getAction())
+            {
+                case DROP_NEWEST:
+                    policy.dropped();
+                    return DROPPED;
+
+                case DROP_OLDEST:
+                    while (!fits(e, policy) && dropOldest())
+                        policy.dropped();
+                    break;
+
+                case BLOCK:
+                    // An I/O loop waiting here could be the one that has
+                    // to drain this queue; it drops the frame instead
+                    if (SelectorEngine.onIOLoop())
+                    {
+                        policy.dropped();
+                        return DROPPED;
+                    }
+                    policy.blocked();
+                    long deadline = System.currentTimeMillis() + policy.getBlockTimeout();
+                    long wait;
+                    try
+                    {
+                        while (!closed && !fits(e, policy) && (wait = deadline - System.currentTimeMillis()) > 0)
+                            wait(wait);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+
+                case DISCONNECT:
+                    policy.disconnected();
+                    return REJECTED;
+            }
+
+            if (closed || !fits(e, policy))
+            {
+                policy.dropped();
+                return DROPPED;
+            }
+        }
+
+        return add(e);
+    }
+
+    private boolean fits(Entry e, SlowConsumerPolicy policy)
+    {
+        return entries.isEmpty() ||
+               (entries.size() < policy.getMaxFrames() && bytes + e.size <= policy.getMaxBytes());
+    }
+
+    /**
+     * Discards the oldest MESSAGE that has not started going out.
+     *
+     * @return false if there was nothing to discard
+     */
+    private boolean dropOldest()
+    {
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext(); )
+        {
+            Entry e = i.next();
+            if (e.droppable && !e.started())
+            {
+                i.remove();
+                bytes -= e.size;
+                e.frame.release();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discards every MESSAGE that has not started going out, for a client
+     * that is about to be disconnected.
+     */
+    synchronized void discardMessages()
+    {
+        while (dropOldest());
+        notifyAll();
+    }
+
+    private int add(Entry e)
+    {
+        entries.add(e);
+        bytes += e.size;
+        queued++;
+        e.frame.retain();
+
+        if (writing)
+            return QUEUED;
+
+        writing = true;
+        if (corks > 0)
+        {
+            deferred = true;
+            return QUEUED;
+        }
+        return START_WRITER;
+    }
+
+    /**
+     * Holds back the writer until a matching uncork(), so that frames
+     * queued in the meantime go out together.
+     */
+    synchronized void cork()
+    {
+        corks++;
+    }
+
+    /**
+     * @return true if frames arrived while corked and the caller must now
+     *  start a writer
+     */
+    synchronized boolean uncork()
+    {
+        if (--corks > 0 || !deferred)
+            return false;
+
+        deferred = false;
+        return true;
+    }
+
+    /**
+     * Fills the array with the unwritten buffers at the front of the queue,
+     * leaving the frames queued until written() is called.  Only the writer
+     * may call this.  When there is nothing left to write the writer is
+     * considered finished, and the next offer() will ask for a new one.
+     *
+     * @return the number of buffers filled in
+     */
+    synchronized int gather(ByteBuffer[] into)
+    {
+        int  n       = 0;
+        long now     = 0;
+        int  expired = 0;
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext(); )
+        {
+            Entry e = i.next();
+            if (n + e.buffers.length > into.length)
+                break;
+
+            if (e.expiring && !e.started())
+            {
+                if (now == 0)
+                    now = System.currentTimeMillis();
+                if (e.frame.expired(now))
+                {
+                    i.remove();
+                    bytes -= e.size;
+                    e.frame.release();
+                    expired++;
+                    continue;
+                }
+            }
+
+            for (ByteBuffer b : e.buffers)
+                if (b.hasRemaining())
+                    into[n++] = b;
+        }
+
+        if (expired > 0)
+            notifyAll();
+
+        if (n == 0)
+            writing = false;
+
+        return n;
+    }
+
+    /**
+     * Drops the frames at the front of the queue that have been written
+     * completely.
+     */
+    synchronized void written()
+    {
+        Entry e;
+        while ((e = entries.peek()) != null && e.written())
+        {
+            entries.poll();
+            bytes -= e.size;
+            e.frame.release();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Drops everything, for a connection that has gone away.
+     */
+    synchronized void clear()
+    {
+        Entry e;
+        while ((e = entries.poll()) != null)
+            e.frame.release();
+
+        bytes  = 0;
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * The number of frames ever queued, so that a caller can tell whether
+     * anything has been sent since it last looked.
+     */
+    synchronized long queued()
+    {
+        return queued;
+    }
+
+    synchronized int frames()
+    {
+        return entries.size();
+    }
+
+    synchronized long bytes()
+    {
+        return bytes;
+    }
+}
@@ -1,9 +1,52 @@
 package net.ser1.stomp;
 
+import java.io.IOException;
+import java.util.Map;
+
 /**
+ * Somewhere for the server to keep messages sent to a destination that
+ * nobody is subscribed to, until somebody subscribes.
+ *
+ * @see Server#setQueue(Queue)
+ * @see FileQueue
+ *
  * (c)2005 Sean Russell
  */
 public interface Queue
 {
-    
-}
\ No newline at end of file
+    /**
+     * Keeps a message that could not be delivered.
+     *
+     * @param destination The destination the message was sent to
+     * @param header The message's headers
+     * @param body The message's body; may be null
+     */
+    public void store(String destination, Map<String, String> header, String body) throws IOException;
+
+    /**
+     * Keeps a message that could not be delivered, with its body as the
+     * bytes it was sent as.  The server stores every message this way;
+     * queues that can keep bytes should override it, as by default the
+     * body is decoded as UTF-8 text.
+     *
+     * @param body The message's body; may be null
+     */
+    default public void store(String destination, Map<String, String> header, byte[] body) throws IOException
+    {
+        store(destination, header, Bodies.text(body));
+    }
+
+    /**
+     * Hands every message kept for a destination to a listener, in the order
+     * they were stored, and forgets them.  A BinaryListener is given the
+     * bodies as bytes.
+     *
+     * @return the number of messages delivered
+     */
+    public int deliver(String destination, Listener listener) throws IOException;
+
+    /**
+     * Releases whatever the queue holds open.
+     */
+    public void close() throws IOException;
+}
@@ -1,172 +1,183 @@
 package net.ser1.stomp;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * The read loop for a single Stomp connection.  A Receiver is a plain
+ * Runnable, so it can be run by any Executor: a platform thread per
+ * connection, a pool, or a virtual thread per connection.
+ *
  * (c)2005 Sean Russell
  */
-public class Receiver extends Thread
+public class Receiver implements Runnable
 {
+    private static final int BUFFER_SIZE = 8192;
+
     private MessageReceiver receiver;
-    private BufferedReader  input;
+    private InputStream     input;
+    private int             maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+
+    private volatile boolean running = true;
+    private volatile Thread  thread;
 
     protected Receiver()
     {
-        super("Stomp-Receiver");
     }
 
     public Receiver(MessageReceiver m, InputStream input)
     {
-        super("Stomp-Receiver");
         setup(m, input);
     }
 
+    /**
+     * @param maxFrameSize The largest frame to accept.  A larger one is
+     *  answered with an ERROR, and the connection is dropped.
+     */
+    public Receiver(MessageReceiver m, InputStream input, int maxFrameSize)
+    {
+        setup(m, input);
+        this.maxFrameSize = maxFrameSize;
+    }
+
     protected void setup(MessageReceiver receiver, InputStream input)
     {
         this.receiver = receiver;
+        this.input    = input;
+    }
+
+    /**
+     * Starts reading on a new platform thread.
+     */
+    public void start()
+    {
+        start(platformThreads());
+    }
+
+    /**
+     * Starts reading on a thread supplied by the given executor.  The
+     * executor must be able to dedicate a thread to this Receiver until
+     * it stops.
+     */
+    public void start(Executor executor)
+    {
+        executor.execute(this);
+    }
+
+    /**
+     * Asks the read loop to finish, and interrupts the thread running it.
+     */
+    public void stop()
+    {
+        running = false;
+
+        Thread t = thread;
+        if (t != null)
+            t.interrupt();
+    }
+
+    /**
+     * An executor that runs each Receiver on a new platform thread.
+     */
+    public static Executor platformThreads()
+    {
+        return new Executor()
+        {
+            public void execute(Runnable r)
+            {
+                new Thread(r, "Stomp-Receiver").start();
+            }
+        };
+    }
+
+    /**
+     * An executor that runs each Receiver on a new virtual thread, so that
+     * tens of thousands of connections can each have a blocking read loop.
+     * Virtual threads need a Java 21 VM; on older VMs this falls back to
+     * platformThreads().
+     */
+    public static Executor virtualThreads()
+    {
+        final ThreadFactory factory = virtualThreadFactory();
+        if (factory == null)
+            return platformThreads();
+
+        return new Executor()
+        {
+            public void execute(Runnable r)
+            {
+                factory.newThread(r).start();
+            }
+        };
+    }
+
+    /**
+     * Looked up reflectively, so that this class still loads on VMs
+     * without virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory()
+    {
         try
         {
-            this.input = new BufferedReader(new InputStreamReader(input, Command.ENCODING));
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "Stomp-Receiver-", 0L);
+            Method factory = builder.getMethod("factory");
+            return (ThreadFactory) factory.invoke(ofVirtual);
+        }
+        catch (Exception e)
+        {
+            return null;
         }
-        catch (UnsupportedEncodingException e) {}
     }
 
     @Override
     public void run()
     {
-        // Loop reading from stream, calling receive()
+        thread = Thread.currentThread();
+
+        // Loop reading from stream, handing whatever arrives to the
+        // decoder, which calls receive() for every complete frame.  Every
+        // read blocks until the peer sends something or the connection
+        // goes away.
+        FrameDecoder decoder = new FrameDecoder(receiver, maxFrameSize);
+        byte[] buffer = new byte[BUFFER_SIZE];
         try
         {
-            while (!isInterrupted())
+            while (running && !thread.isInterrupted())
             {
-                // Get command
-                if (input.ready())
+                int n = input.read(buffer);
+                if (n < 0)
                 {
-                    String command = input.readLine();
-
-                    if (command.length() > 0)
-                    {
-                        try
-                        {
-                            Command c = Command.valueOf(command);
-                            // Get headers
-                            Map<String, String> headers = new HashMap<>();
-                            String header;
-                            while ((header = input.readLine()).length() > 0)
-                            {
-                              int ind = header.indexOf(':');
-                              headers.put(header.substring(0, ind).trim(), header.substring(ind + 1, header.length()).trim());
-                            }
-                            // Read body
-                            StringBuilder body = new StringBuilder();
-                            int b;
-                            while ((b = input.read()) != 0)
-                                body.append((char) b);
-
-                            try
-                            {
-                              receiver.receive(c, headers, body.toString());
-                            }
-                            catch (Exception e) {}
-
-                            /*Command c = Command.getCommand(command);
-
-                            // Get headers
-                            HashMap<String, String> headers = new HashMap<>();
-                            String header;
-
-                            while ((header = input.readLine()).length() > 0)
-                            {
-                                int ind = header.indexOf(':');
-                                headers.put(header.substring(0, ind).trim(), header.substring(ind + 1, header.length()).trim());
-                            }
-
-                            // Read body
-                            StringBuilder body = new StringBuilder();
-                            if (c == Command.MESSAGE || c == Command.ERROR || c == Command.SEND)
-                            {
-                                if (headers.containsKey("content-length"))
-                                {
-                                    for (int i = 0; body.length() < contentLength; i++)
-                                    {
-                                        int b = input.read();
-                                        System.out.print((char)b);
-
-                                        if (b > -1)
-                                        {
-                                            if (i == 1)
-                                                b = 0x8b;
-
-                                            char chr = (char) b;
-
-                                            body.append(chr);
-                                        }
-                                    }
-                                    while (input.read() != 0);
-                                }
-                                else
-                                {
-                                    int b;
-
-                                    while ((b = input.read()) > 0)
-                                        body.append((char) b);
-                                }
-                            }
-                            else
-                                input.readLine();
-
-                            try
-                            {
-                                receiver.receive(c, headers, body.toString());
-                            }
-                            catch (Exception e) {}*/
-                        }
-                        catch (Error e)
-                        {
-                            e.printStackTrace();
-
-                            try { while (input.read() != 0); }
-                            catch (Exception ex) {}
-
-                            try
-                            {
-                                receiver.receive(Command.ERROR, null, e.getMessage() + "\n");
-                            }
-                            catch (Exception ex) {}
-                        }
-                    }
-                    else
-                        receiver.receive(Command.HEARTBEAT, null, null);
+                    // End of stream; the other end has gone
+                    break;
                 }
-                else
+                decoder.decode(buffer, 0, n);
+                if (decoder.failed())
                 {
-                    if (receiver.isClosed())
-                    {
-                        receiver.disconnect();
-                        return;
-                    }
-
-                    try
-                    {
-                        Thread.sleep(200);
-                    }
-                    catch(InterruptedException e)
-                    {
-                        interrupt();
-                    }
+                    // The peer sent a frame too large to take
+                    break;
                 }
             }
         }
         catch (Exception e)
         {
-            System.err.println("Stomp exiting because of an exception");
-            e.printStackTrace();
-            receiver.receive(Command.ERROR, null, e.getMessage());
+            // A read failing because we were stopped is not worth reporting
+            if (running)
+            {
+                System.err.println("Stomp exiting because of an exception");
+                e.printStackTrace();
+                receiver.receive(Command.ERROR, null, e.getMessage());
+            }
         }
+        finally
+        {
+            thread = null;
+        }
+
+        if (running && !receiver.isClosed())
+            receiver.disconnect();
     }
 }
\ No newline at end of file
@@ -0,0 +1,345 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A network engine for the Server built on non-blocking channels.  One
+ * thread accepts connections and hands them out, round robin, to a small,
+ * fixed pool of I/O loops.  Each loop multiplexes its connections over a
+ * single Selector, so an idle client costs a few buffers instead of a thread.
+ *
+ * Frames read off the wire go through the same ServerConnection session
+ * logic, and therefore the same Server.receive() dispatch and Authenticator,
+ * as the thread-per-connection engine.
+ */
+class SelectorEngine extends Thread implements Server.Acceptor
+{
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * True on the threads of I/O loops.
+     */
+    private static final ThreadLocal<Boolean> ON_LOOP = new ThreadLocal<>();
+
+    private final Server              server;
+    private final int                 port;
+    private final ServerSocketChannel serverChannel;
+    private final IOLoop[]            loops;
+    private final List<ChannelConnection> connections = Collections.synchronizedList(new ArrayList<ChannelConnection>());
+    private int next = 0;
+
+    SelectorEngine(int port, int ioThreads, Server server) throws IOException
+    {
+        super("Stomp-Selector-Acceptor-" + port);
+        this.server = server;
+        this.port   = port;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        loops = new IOLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i] = new IOLoop();
+            Thread t = new Thread(loops[i], "Stomp-Selector-" + port + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (!isInterrupted())
+            {
+                SocketChannel channel = serverChannel.accept();
+                try
+                {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+
+                    ChannelConnection connection = new ChannelConnection(channel);
+                    connections.add(connection);
+
+                    loops[next].register(connection);
+                    next = (next + 1) % loops.length;
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace(System.err);
+                    try { channel.close(); } catch (IOException ex) {}
+                }
+            }
+        }
+        catch (ClosedChannelException e)
+        {
+            // This gets thrown when the accept() is interrupted
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    public boolean isPort(int port)
+    {
+        return this.port == port;
+    }
+
+    /**
+     * Stops accepting connections, closes every connection owned by this
+     * engine, and stops the I/O loops.
+     */
+    public void shutdown()
+    {
+        interrupt();
+        try { serverChannel.close(); } catch (IOException e) {}
+
+        List<ChannelConnection> open;
+        synchronized (connections)
+        {
+            open = new ArrayList<>(connections);
+        }
+        for (ChannelConnection connection : open)
+            connection.close();
+
+        for (IOLoop loop : loops)
+            loop.shutdown();
+    }
+
+    public void disconnect(ServerConnection connection)
+    {
+        connections.remove(connection);
+    }
+
+    /**
+     * Tests whether the calling thread is an I/O loop, which must never
+     * wait on a client: it may be the one that has to drain it.
+     */
+    static boolean onIOLoop()
+    {
+        return ON_LOOP.get() != null;
+    }
+
+    /**
+     * A single selector thread.  Connections are handed over through a queue
+     * because a channel can only be registered safely from the thread that is
+     * not blocked in select().
+     */
+    private class IOLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<ChannelConnection> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        IOLoop() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        void register(ChannelConnection connection)
+        {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to stop.  The loop closes its own selector, since
+         * closing it from another thread can pull keys out from under the
+         * loop while it is working through them.
+         */
+        void shutdown()
+        {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run()
+        {
+            ON_LOOP.set(Boolean.TRUE);
+            try
+            {
+                while (running)
+                {
+                    selector.select();
+
+                    ChannelConnection connection;
+                    while ((connection = pending.poll()) != null)
+                    {
+                        try
+                        {
+                            connection.key = connection.channel.register(selector, connection.interest(), connection);
+                        }
+                        catch (ClosedChannelException e)
+                        {
+                            connection.close();
+                        }
+                    }
+
+                    for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); )
+                    {
+                        SelectionKey key = i.next();
+                        i.remove();
+
+                        ChannelConnection c = (ChannelConnection) key.attachment();
+                        if (!key.isValid())
+                            continue;
+
+                        try
+                        {
+                            if (key.isWritable())
+                                c.flush();
+                            if (key.isValid() && key.isReadable())
+                                c.read();
+                        }
+                        catch (IOException e)
+                        {
+                            c.close();
+                        }
+                    }
+                }
+            }
+            catch (ClosedSelectorException e)
+            {
+                // Nothing left to do
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(System.err);
+            }
+            finally
+            {
+                try { selector.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * A client connection driven by an IOLoop.  Reads and writes are only
+     * ever done on the loop's thread; other threads just queue frames and
+     * ask the loop to select for writability.
+     */
+    private class ChannelConnection extends ServerConnection
+    {
+        private final SocketChannel     channel;
+        private final ByteBuffer[]      batch = new ByteBuffer[Server.WRITE_BATCH];
+        private volatile SelectionKey   key;
+        private final ByteBuffer        in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final FrameDecoder      decoder;
+
+        ChannelConnection(SocketChannel channel)
+        {
+            super(SelectorEngine.this.server);
+            this.channel = channel;
+            this.decoder = new FrameDecoder(this, server.maxFrameSize());
+        }
+
+        public boolean isClosed()
+        {
+            return !channel.isOpen();
+        }
+
+        protected boolean isPort(int port)
+        {
+            return channel.socket().getLocalPort() == port;
+        }
+
+        protected void close()
+        {
+            if (key != null)
+                key.cancel();
+
+            try { channel.close(); } catch (IOException e) { /* Who cares? */ }
+            outbound.clear();
+
+            SelectorEngine.this.disconnect(this);
+            server.disconnect(this);
+        }
+
+        /**
+         * The operations the IOLoop should select on when first registering.
+         */
+        int interest()
+        {
+            return outbound.frames() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        }
+
+        /**
+         * Reads whatever is available and dispatches every complete frame.
+         */
+        void read() throws IOException
+        {
+            in.clear();
+            if (channel.read(in) < 0)
+            {
+                close();
+                return;
+            }
+
+            in.flip();
+            decoder.decode(in);
+
+            // After a frame too large to take, the decoder ignores the rest;
+            // the ERROR it sent goes out before the connection is closed
+            if (decoder.failed())
+                disconnect();
+        }
+
+        /**
+         * Asks the IOLoop to drain the outbound queue.  Only the loop
+         * writes to the channel.
+         */
+        protected void startWriting()
+        {
+            SelectionKey k = key;
+            if (k != null && k.isValid())
+            {
+                k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                k.selector().wakeup();
+            }
+        }
+
+        /**
+         * Called by the IOLoop when the channel can take more data.  Writes
+         * as many queued frames as the socket will take with one gathering
+         * write per batch.
+         */
+        void flush() throws IOException
+        {
+            // Stop asking for writability first; startWriting() will ask
+            // again for anything queued after gather() finds the queue empty
+            key.interestOps(SelectionKey.OP_READ);
+
+            int n;
+            while ((n = outbound.gather(batch)) > 0)
+            {
+                channel.write(batch, 0, n);
+                outbound.written();
+
+                if (batch[n - 1].hasRemaining())
+                {
+                    // The socket is full; finish when it drains
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            drained();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package net.ser1.stomp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on threads
+ * borrowed from another executor.
+ *
+ * Any number of serial executors can share one pool: each only ever has
+ * one task running, or waiting to run, on the pool, which works through
+ * the tasks queued so far and then gives its thread back.  A busy executor
+ * gives its thread back every BATCH tasks, so others sharing the pool get
+ * a turn.
+ */
+class SerialExecutor implements Executor, Runnable
+{
+    private static final int BATCH = 64;
+
+    private final Executor        pool;
+    private final Queue<Runnable> tasks   = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean   running = new AtomicBoolean();
+
+    SerialExecutor(Executor pool)
+    {
+        this.pool = pool;
+    }
+
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        schedule();
+    }
+
+    public void run()
+    {
+        try
+        {
+            Runnable task;
+            for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+        finally
+        {
+            running.set(false);
+        }
+
+        // Tasks that came in after the last poll, or the rest of the batch
+        if (!tasks.isEmpty())
+            schedule();
+    }
+
+    private void schedule()
+    {
+        if (running.compareAndSet(false, true))
+        {
+            try
+            {
+                pool.execute(this);
+            }
+            catch (RuntimeException e)
+            {
+                running.set(false);
+                throw e;
+            }
+        }
+    }
+}
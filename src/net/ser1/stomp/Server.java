@@ -2,7 +2,15 @@ package net.ser1.stomp;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements a Stomp server.  This is a tiny embeddable server that
@@ -29,11 +37,17 @@ import java.util.*;
  *   i.stop();
  * </pre>
  *
- * FIXME
- * Queues are not implemented.  Therefore, this server operates as an IRC,
- * rather than a Jabber, messaging system.  That is, all messages arriving
- * before a subscription request are lost to that client.  When Queues are
- * implemented, there will be an option to set persistence on the messages.
+ * By default the server operates as an IRC, rather than a Jabber,
+ * messaging system.  That is, all messages arriving before a subscription
+ * request are lost to that client.  Give the server a Queue, such as a
+ * FileQueue, and messages sent to a destination nobody is subscribed to
+ * are kept, and delivered to the first client to subscribe to it.
+ *
+ * A message with an "expires" header, a time in milliseconds since the
+ * epoch by the server's clock, is dropped once that time has passed:
+ * when it arrives, when it is replayed from the Queue or handed to another
+ * subscriber, and while it waits to be written to a client that has
+ * fallen behind, or for room in a subscription's prefetch window.
  *
  * Would it be good if -- given a session ID -- clients could
  * reconnect and complete transactions?
@@ -41,11 +55,100 @@ import java.util.*;
  * (c)2005 Sean Russell
  */
 public class Server {
-  private Queue _message_queue;
-  private Map _transactions;
-  private Map _listeners;
-  private ConnectionListener _connection_listener;
+  private volatile Queue _message_queue;
+  private ConcurrentHashMap<TransactionKey,List<Message>> _transactions;
+  private SubscriptionRegistry _subscriptions;
+  private List _acceptors = Collections.synchronizedList( new ArrayList() );
   private Authenticator _authenticator = new AllowAllAuthenticator();
+  private Engine _engine = Engine.BLOCKING;
+  private int _io_threads = Runtime.getRuntime().availableProcessors();
+  private SlowConsumerPolicy _slow_consumer_policy = new SlowConsumerPolicy(
+      SlowConsumerPolicy.Action.DISCONNECT, 65536, 64L * 1024 * 1024 );
+  private Map<String,SlowConsumerPolicy> _slow_consumer_policies = new ConcurrentHashMap<String,SlowConsumerPolicy>();
+  private ExecutorService _writer_pool;
+  private Dispatch _dispatch = Dispatch.LEAST_LOADED;
+  private final AtomicIntegerArray _rotation = new AtomicIntegerArray( ROTATIONS );
+  private int _prefetch = 0;
+  private volatile int[] _heart_beat = { 10000, 10000 };
+  private volatile int _max_frame_size = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+  private final String _message_id_prefix = Long.toString( System.currentTimeMillis(), 36 ) + "-";
+  private final AtomicLong _message_ids = new AtomicLong();
+
+  /**
+   * Messages sent to destinations starting with this go to exactly one
+   * subscriber, rather than to all of them.
+   *
+   * @see setDispatch()
+   */
+  public static final String QUEUE_PREFIX = "/queue/";
+
+  /**
+   * The number of round-robin counters queue destinations are spread over.
+   */
+  private static final int ROTATIONS = 64;
+
+  /**
+   * The most buffers a writer takes from an outbound queue at once, and
+   * the size of the block small frames are gathered into.
+   */
+  static final int WRITE_BATCH = 64;
+  static final int WRITE_BUFFER_SIZE = 16384;
+
+
+  /**
+   * The ways in which a Server can service its network connections.
+   */
+  public static enum Engine {
+    /**
+     * One blocking reader thread per client connection.  Simple, and
+     * fine for a few hundred clients.
+     */
+    BLOCKING,
+    /**
+     * Like BLOCKING, but each client's reader runs on a virtual thread,
+     * so the simple blocking design scales to tens of thousands of
+     * connections.  Requires a Java 21 VM; on older VMs this behaves
+     * exactly like BLOCKING.
+     */
+    VIRTUAL,
+    /**
+     * A small, fixed pool of non-blocking I/O loops shared by all of
+     * the clients on a port.  Use this when holding many thousands of
+     * mostly idle connections.
+     *
+     * @see setIOThreads()
+     */
+    SELECTOR
+  }
+
+
+  /**
+   * How the server picks the one subscriber to get a message sent to a
+   * queue destination.
+   */
+  public static enum Dispatch {
+    /**
+     * Each subscriber in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The subscriber with the fewest frames waiting to be written to it,
+     * taking turns among equally loaded subscribers.  Intra-VM
+     * subscribers never have anything waiting.
+     */
+    LEAST_LOADED
+  }
+
+
+  /**
+   * Something that accepts network connections on a port on behalf of
+   * the server, and owns the connections it accepted.
+   */
+  interface Acceptor {
+    boolean isPort( int port );
+    void shutdown();
+    void disconnect( ServerConnection c );
+  }
 
 
   /**
@@ -56,9 +159,8 @@ public class Server {
    * @see listen()
    */
   public Server() {
-    _message_queue = new FileQueue();
-    _transactions = new HashMap();
-    _listeners = new HashMap();
+    _transactions = new ConcurrentHashMap<TransactionKey,List<Message>>();
+    _subscriptions = new SubscriptionRegistry();
   }
 
 
@@ -89,9 +191,27 @@ public class Server {
    * @param auth A class responsible for authenticating connections.
    */
   public Server( int port, Authenticator auth ) throws IOException {
+    this( port, auth, Engine.BLOCKING );
+  }
+
+
+  /**
+   * Instantiates an inter-network server listening on the supplied
+   * port.  Additional ports can be listened on by using the listen()
+   * method, and will use the same engine.
+   *
+   * @see listen()
+   * @param port This port will be opened and will listen for client
+   *  connections.  If the port value is less than 0, the default port
+   *  of 61626 will be used.
+   * @param auth A class responsible for authenticating connections.
+   * @param engine How network connections are serviced.
+   */
+  public Server( int port, Authenticator auth, Engine engine ) throws IOException {
     this();
     if (port < 0) port = 61626;
     if (auth != null) _authenticator = auth;
+    if (engine != null) _engine = engine;
     listen(port);
   }
 
@@ -106,18 +226,225 @@ public class Server {
    *  thrown.
    */
   public void listen( int port ) throws IOException {
-    _connection_listener = new ConnectionListener( port, this );
-    _connection_listener.start();
+    listen( port, _engine );
+  }
+
+
+  /**
+   * Opens a port for internet connections, serviced by the given engine.
+   *
+   * @param port This port will be opened and will listen for client
+   *  connections.
+   * @param engine How connections on this port are serviced.
+   */
+  public void listen( int port, Engine engine ) throws IOException {
+    if (engine == Engine.SELECTOR) {
+      SelectorEngine e = new SelectorEngine( port, _io_threads, this );
+      _acceptors.add( e );
+      e.start();
+    } else {
+      Executor readers, writers;
+      if (engine == Engine.VIRTUAL) {
+        readers = writers = Receiver.virtualThreads();
+      } else {
+        readers = Receiver.platformThreads();
+        writers = writerPool();
+      }
+      ConnectionListener l = new ConnectionListener( port, this, readers, writers );
+      _acceptors.add( l );
+      l.start();
+    }
+  }
+
+
+  /**
+   * Sets the number of I/O loops used by ports opened with the
+   * SELECTOR engine from now on.  Defaults to the number of processors.
+   */
+  public void setIOThreads( int count ) {
+    _io_threads = count;
+  }
+
+
+  /**
+   * Sets how messages sent to queue destinations, those starting with
+   * QUEUE_PREFIX, are shared out among their subscribers.  Defaults to
+   * LEAST_LOADED.  If the chosen subscriber cannot take the message, under
+   * its slow consumer policy, the next one is tried.
+   */
+  public void setDispatch( Dispatch dispatch ) {
+    if (dispatch == null) throw new IllegalArgumentException( "dispatch cannot be null" );
+    _dispatch = dispatch;
+  }
+
+
+  /**
+   * Sets the heart-beat periods the server offers network clients that
+   * ask for heart-beats when they CONNECT.  The periods actually used are
+   * negotiated with each client.  A client that sends nothing, not even a
+   * heart-beat, for half as long again as the negotiated period is
+   * disconnected, so half-open connections do not linger.  Defaults to
+   * 10 seconds each way.
+   *
+   * @param send The shortest period, in milliseconds, at which the server
+   *  will send heart-beats, or 0 never to send them
+   * @param receive The period at which the server would like heart-beats
+   *  from clients, or 0 not to check clients
+   */
+  public void setHeartBeat( int send, int receive ) {
+    _heart_beat = new int[] { Math.max( 0, send ), Math.max( 0, receive ) };
+  }
+
+
+  /**
+   * The heart-beat periods offered to clients: send, then receive.
+   */
+  int[] heartBeat() {
+    return _heart_beat;
+  }
+
+
+  /**
+   * Sets the largest frame, headers and body together, that network
+   * clients connecting from now on may send.  A client that sends a
+   * larger frame, or declares a content-length that would make one, gets
+   * an ERROR and is disconnected.  Defaults to 16MB.
+   *
+   * @param bytes The most bytes in one frame
+   */
+  public void setMaxFrameSize( int bytes ) {
+    if (bytes <= 0) throw new IllegalArgumentException( "frame size must be positive" );
+    _max_frame_size = bytes;
+  }
+
+
+  /**
+   * The largest frame network clients may send.
+   */
+  int maxFrameSize() {
+    return _max_frame_size;
+  }
+
+
+  /**
+   * Turns on acknowledgement tracking for network clients that subscribe
+   * with an "ack" mode of "client" or "client-individual", and sets how
+   * many messages each such subscription may have unacknowledged at once.
+   * Further messages are held by the server until the client ACKs.
+   * Messages the client NACKs, or has not ACKed when it unsubscribes or
+   * disconnects, are redelivered to another subscriber of a queue
+   * destination, or kept in the server's Queue if there is none; for other
+   * destinations they are dropped.
+   *
+   * A client can ask for a different window with a "prefetch-count" header
+   * on its SUBSCRIBE, which also turns tracking on for that subscription.
+   *
+   * @param window The most unacknowledged messages per subscription, or
+   *  0, the default, to treat every subscription as "auto"
+   */
+  public void setPrefetch( int window ) {
+    _prefetch = Math.max( 0, window );
+  }
+
+
+  /**
+   * Bounds the frames waiting to be written to each network client.  A
+   * client that falls further behind than this is disconnected.  The
+   * defaults are 65536 frames and 64MB.  This is the same as setting a
+   * DISCONNECT policy with these limits.
+   *
+   * @param frames The most frames that may be waiting for one client
+   * @param bytes The most bytes that may be waiting for one client
+   */
+  public void setOutboundLimits( int frames, long bytes ) {
+    setSlowConsumerPolicy( new SlowConsumerPolicy(
+          SlowConsumerPolicy.Action.DISCONNECT, frames, bytes ) );
   }
 
 
   /**
-   * Called by a SocketHandler to notify the server that a client
+   * Sets what happens when a network client falls behind, for every
+   * destination without a policy of its own.
+   *
+   * @see SlowConsumerPolicy
+   */
+  public void setSlowConsumerPolicy( SlowConsumerPolicy policy ) {
+    if (policy == null) throw new IllegalArgumentException( "policy cannot be null" );
+    _slow_consumer_policy = policy;
+  }
+
+
+  /**
+   * Sets what happens when a network client falls behind on messages
+   * sent to one destination.
+   *
+   * @param destination The destination the policy applies to, exactly: not
+   *  the destinations below it, and not a wildcard pattern
+   * @param policy The policy, or null to use the server's policy
+   */
+  public void setSlowConsumerPolicy( String destination, SlowConsumerPolicy policy ) {
+    if (policy == null) {
+      _slow_consumer_policies.remove( destination );
+    } else {
+      _slow_consumer_policies.put( destination, policy );
+    }
+  }
+
+
+  /**
+   * The policy applied to messages sent to a destination.
+   */
+  public SlowConsumerPolicy getSlowConsumerPolicy( String destination ) {
+    SlowConsumerPolicy p = destination == null ? null : _slow_consumer_policies.get( destination );
+    return p == null ? _slow_consumer_policy : p;
+  }
+
+
+  /**
+   * The threads that write to BLOCKING engine clients.  A thread is only
+   * busy while a client has frames waiting, so one pool serves every
+   * port.  Connections of any engine whose heart-beats stop are also
+   * taken down here, rather than on the timer's thread.
+   */
+  synchronized Executor writerPool() {
+    if (_writer_pool == null) {
+      _writer_pool = Executors.newCachedThreadPool( new ThreadFactory() {
+        public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "Stomp-Writer" );
+          t.setDaemon( true );
+          return t;
+        }
+      });
+    }
+    return _writer_pool;
+  }
+
+
+  /**
+   * The authenticator used to validate client connections.
+   */
+  Authenticator authenticator() {
+    return _authenticator;
+  }
+
+
+  /**
+   * Called by a ServerConnection to notify the server that a client
    * has disconnected.  Is not, and should not, be called from anywhere
    * else.
    */
-  protected void disconnect( SocketHandler s ) {
-    _connection_listener.disconnect( s );
+  protected void disconnect( ServerConnection s ) {
+    synchronized (_acceptors) {
+      for (Iterator i=_acceptors.iterator(); i.hasNext(); ) {
+        ((Acceptor)i.next()).disconnect( s );
+      }
+    }
+    for (Iterator<TransactionKey> i = _transactions.keySet().iterator(); i.hasNext(); ) {
+      if (i.next().owner == s) i.remove();
+    }
+    _subscriptions.unsubscribeAll( s );
+    s.stopHeartBeats();
+    redeliver( s.abandon( null, null ), s );
   }
 
 
@@ -130,16 +457,21 @@ public class Server {
    * shut down, stops receiving connections and shuts down all existing
    * client connections.
    */
-  private class ConnectionListener extends Thread {
+  private class ConnectionListener extends Thread implements Acceptor {
     private int _port;
     private Server _server;
     private ServerSocket _serve_sock;
-    private List _handlers = new ArrayList();
+    private List _handlers = Collections.synchronizedList( new ArrayList() );
+    private Executor _readers;
+    private Executor _writers;
 
 
-    protected ConnectionListener( int port, Server server ) {
+    protected ConnectionListener( int port, Server server, 
+        Executor readers, Executor writers ) {
       _port = port;
       _server = server;
+      _readers = readers;
+      _writers = writers;
     }
 
 
@@ -150,9 +482,9 @@ public class Server {
         while (!isInterrupted()) {
           sock = _serve_sock.accept();
           try {
-            Thread handler = new SocketHandler( sock, _server );
-            handler.start();
+            SocketHandler handler = new SocketHandler( sock, _server );
             _handlers.add( handler );
+            handler.start( _readers, _writers );
           } catch (IOException e) {
             e.printStackTrace( System.err );
           }
@@ -164,20 +496,27 @@ public class Server {
       } catch (Exception e) {
         e.printStackTrace( System.err );
       }
-      for (Iterator i=_handlers.iterator(); i.hasNext(); ) {
+      List handlers;
+      synchronized (_handlers) {
+        handlers = new ArrayList( _handlers );
+      }
+      for (Iterator i=handlers.iterator(); i.hasNext(); ) {
         try {
-          Thread t = (Thread)i.next();
-          t.interrupt();
-          Thread.yield();
+          ((SocketHandler)i.next()).close();
         } catch (Exception e) { }
       }
     }
 
 
+    public boolean isPort( int port ) {
+      return _port == port;
+    }
+
+
     /**
      * Shut down operations.
      */
-    protected void shutdown() {
+    public void shutdown() {
       this.interrupt();
       try { _serve_sock.close(); } catch (Exception e) {}
     }
@@ -187,7 +526,7 @@ public class Server {
      * Called by the server to notify this object that a SocketHandler
      * has disconnected itself.
      */
-    protected void disconnect( SocketHandler h ) {
+    public void disconnect( ServerConnection h ) {
       _handlers.remove(h);
     }
   }
@@ -197,11 +536,6 @@ public class Server {
    * Shuts down the server, closing all connections.
    */
   public void stop() {
-    // The _connection_listener will be null if this is not a network
-    // socket server.
-    if (_connection_listener != null) {
-      _connection_listener.shutdown();
-    }
     close( -1 );
     Thread.yield();
   }
@@ -210,9 +544,10 @@ public class Server {
   /**
    * Sets the queuing mechanism used for all further messages.  Any
    * existing undelivered messages will <em>not</em> use this queue.
-   * FIXME Not implemented
+   * The server does not close the queue when it is stopped.
    * 
-   * @param queue 
+   * @param queue Where to keep messages sent to destinations without
+   *  subscribers, or null to discard them
    */
   public void setQueue( Queue q ) {
     _message_queue = q;
@@ -222,74 +557,69 @@ public class Server {
   /**
    * Closes a port.  All connections on this port will be closed.
    *
-   * @param port The port to close.  A value of < -1 closes all ports
+   * @param port The port to close.  A value of -1 closes all ports
    */
   public void close( int port ) {
-    for (Iterator i = _listeners.keySet().iterator(); i.hasNext(); ) {
-      Object k = i.next();
-      Object s = _listeners.get(k);
-      if (s instanceof SocketHandler) {
-        SocketHandler sh = (SocketHandler)s;
-        if (port == -1 || sh.isPort( port )) {
-          sh.interrupt();
-          sh.close();
-          _transactions.remove( s );
-          _listeners.remove( k );
+    List closing = new ArrayList();
+    synchronized (_acceptors) {
+      for (Iterator i = _acceptors.iterator(); i.hasNext(); ) {
+        Acceptor a = (Acceptor)i.next();
+        if (port == -1 || a.isPort( port )) {
+          closing.add( a );
+          i.remove();
         }
       }
     }
+    for (Iterator i = closing.iterator(); i.hasNext(); ) {
+      ((Acceptor)i.next()).shutdown();
+    }
   }
 
 
   // FIXME: Need to enforce CONNECT; right now, doesn't require a connect.
   // FIXME: Add login handling feature
   /**
-   * Manages client connections.  There is one SocketHandler per client.
-   * This class is responsible for relaying communications between the 
-   * server and the client for which it is responsible.
+   * Manages client connections for the BLOCKING and VIRTUAL engines.
+   * There is one SocketHandler, and one Receiver, per client.  This class is
+   * responsible for relaying communications between the server and the
+   * client for which it is responsible.
    */
-  protected class SocketHandler 
-      extends Receiver 
-      implements Listener, Authenticatable {
+  protected class SocketHandler extends ServerConnection {
     private InputStream _input;
     private OutputStream _output;
     private Socket _socket;
-    private Server _server;
-    private Object _client_token;
-    private boolean _authenticated = false;
+    private Receiver _receiver;
+    private Executor _writers;
 
 
     /**
      * Sets up a client communication on a given socket.
      */
     public SocketHandler( Socket sock, Server s ) throws IOException {
-      super();
+      super( s );
       _input = sock.getInputStream();
       _output = sock.getOutputStream();
       _socket = sock;
-      _server = s;
-      setup( this, _input );
+      _receiver = new Receiver( this, _input, s.maxFrameSize() );
     }
 
 
-    public Object token() {
-      return _client_token;
+    /**
+     * Starts reading from the client on a thread from the given executor.
+     * Writes to the client run on threads from the writers executor, and
+     * only while there is something to write.
+     */
+    public void start( Executor readers, Executor writers ) {
+      _writers = writers;
+      _receiver.start( readers );
     }
 
 
     public boolean isClosed() { return _socket.isClosed(); }
 
 
-    /**
-     * Tests whether the supplied port is the port this handler is
-     * communicating with the client over.
-     *
-     * @param port the port number to test.
-     * @return true iff the supplied port matches the open port of this
-     *  handler.
-     */
     protected boolean isPort( int port ) {
-      return _socket.getPort() == port;
+      return _socket.getLocalPort() == port;
     }
 
 
@@ -297,6 +627,7 @@ public class Server {
      * Close the connection with the client.
      */
     protected void close() {
+      _receiver.stop();
       try { 
         _socket.shutdownInput();
         _input.close();  
@@ -306,97 +637,59 @@ public class Server {
         _output.close(); 
       } catch (IOException e) { /* Who cares? */ }
       try { _socket.close(); } catch (IOException e) { /* Who cares? */ }
+      outbound.clear();
+      server.disconnect( this );
     }
 
 
-    public void disconnect() { close(); }
+    /**
+     * Hands the writer to an executor when frames arrive for an idle
+     * client.
+     */
+    protected void startWriting() {
+      _writers.execute( _writer );
+    }
 
 
     /**
-     * Gets called when messages come in from the client, and relays the
-     * message to the server.  This method handles and consumes CONNECT, 
-     * DISCONNECT, and ERROR messages.  It is also responsible for sending
-     * RECEIPTs back to the client.
+     * Drains the outbound queue.  Frames are copied into a block of
+     * WRITE_BUFFER_SIZE bytes and written together, so a burst of small
+     * frames costs one write; frames too big for the block are written
+     * straight from their own buffers.
      */
-    public void receive( Command c, Map h, String b ) {
-      if (c == Command.CONNECT) {
-        String login = (String)h.get( "login" );
-        String passcode = (String)h.get( "passcode" );
+    private final Runnable _writer = new Runnable() {
+      public void run() {
+        ByteBuffer[] batch = new ByteBuffer[ WRITE_BATCH ];
+        byte[] block = new byte[ WRITE_BUFFER_SIZE ];
         try {
-          _client_token = Server.this._authenticator.connect( login, passcode );
-          HashMap headers = new HashMap();
-          headers.put( "session", String.valueOf( this.hashCode() ) );
-          transmit( Command.CONNECTED, headers, null );
-          _authenticated = true;
-        } catch (javax.security.auth.login.LoginException e) {
-          transmit( Command.ERROR, null, "Login failed: " + e.getMessage());
-        }
-      } else {
-        if (!_authenticated) {
-          transmit( Command.ERROR, null, "Not CONNECTed, or not authorized" );
-          return;
-        }
-
-        if (c == Command.DISCONNECT) {
-          if (h != null) {
-            String receipt = (String)h.get("receipt");
-            if (receipt != null) {
-              HashMap headers = new HashMap();
-              headers.put( "receipt-id", receipt );
-              receive( Command.RECEIPT, headers, null );
+          int n;
+          while ((n = outbound.gather( batch )) > 0) {
+            int used = 0;
+            for (int i = 0; i < n; i++) {
+              ByteBuffer b = batch[i];
+              int len = b.remaining();
+              if (len > block.length - used && used > 0) {
+                _output.write( block, 0, used );
+                used = 0;
+              }
+              if (len > block.length) {
+                _output.write( b.array(), b.arrayOffset() + b.position(), len );
+                b.position( b.limit() );
+              } else {
+                b.get( block, used, len );
+                used += len;
+              }
             }
+            if (used > 0) _output.write( block, 0, used );
+            outbound.written();
           }
-          _server.disconnect( this );
-          this.interrupt();
-          Thread.yield();
+        } catch (IOException e) {
           close();
-        } else if (c == Command.ERROR) {
-          // Then there was an error in the client message.  Pass it back.
-          error( h, b );
-        } else {
-          _server.receive( c, h, b, this );
+          return;
         }
+        drained();
       }
-    }
-
-
-    /**
-     * Called by the server; sends a message to this client.
-     */
-    public void message( Map headers, String body ) {
-      transmit( Command.MESSAGE, headers, body );
-    }
-
-
-    /**
-     * Called by the server; sends a receipt to this client.
-     */
-    public void receipt( Map headers ) {
-      transmit( Command.RECEIPT, headers, null );
-    }
-
-
-    /**
-     * Called by the server.  Sends an error to the client.
-     */
-    public void error( Map headers, String message ) {
-      transmit( Command.ERROR, headers, message );
-    }
-
-
-    /**
-     * Used by message(), receipt(), and error() to deliver the message to the
-     * client.
-     */
-    private void transmit( Command c, Map h, String b ) {
-      try {
-        Transmitter.transmit( c, h, b, _output );
-      } catch (Exception e) {
-        this.interrupt();
-        Thread.yield();
-        close();
-      }
-    }
+    };
   }
 
 
@@ -419,114 +712,424 @@ public class Server {
    * @param b the message
    * @param y the thing that received the message and passed it to us
    */
-  protected void receive( Command c, Map h, String b, Authenticatable y ) {
-    long id = (int)(Math.random() * 10000);
+  protected void receive( Command c, Map<String,String> h, String b, Authenticatable y ) {
+    receive( c, h, Bodies.bytes( b ), y );
+  }
+
+
+  /**
+   * Incoming messages whose bodies are still the bytes they were sent as
+   * come here.  Bodies are relayed, stored and delivered as those bytes,
+   * and only decoded for listeners that want text.
+   *
+   * @param c the command
+   * @param h the headers
+   * @param b the message
+   * @param y the thing that received the message and passed it to us
+   */
+  protected void receive( Command c, Map<String,String> h, byte[] b, Authenticatable y ) {
     try {
-      // Convert to MESSAGE and distribute
-      if (c == Command.COMMIT) {
-        synchronized (_transactions) {
-          List trans = (List)_transactions.remove(y);
-          trans = new ArrayList( trans );
-          for (Iterator i=trans.iterator(); i.hasNext(); ) {
-            Message m = (Message)i.next();
-            try {
-              receive( m.command(), m.headers(), m.body(), y );
-            } catch (Exception e) {
-              // Don't allow listener code to break us
-            }
-          }
+      if (h == null) h = new Headers();
+      String tx = h.get("transaction");
+      List<Message> trans = null;
+
+      if (c == Command.BEGIN) {
+        if (_transactions.putIfAbsent( new TransactionKey( y, tx ), new ArrayList<Message>() ) != null) {
+          transactionError( y, tx, "Transaction already begun" );
         }
 
-      } else if (c == Command.ABORT) {
-        synchronized (_transactions) {
-          _transactions.remove(y);
+      } else if (c == Command.COMMIT || c == Command.ABORT) {
+        trans = _transactions.remove( new TransactionKey( y, tx ) );
+        if (trans == null) {
+          transactionError( y, tx, "No such transaction" );
+        } else if (c == Command.COMMIT) {
+          commit( trans, y );
         }
 
-      } else if (_transactions.get( y ) != null) {
-        synchronized (_transactions) {
-          ((List)_transactions.get( y )).add( new Message( c, h, b ) );
+      } else if (!_transactions.isEmpty() &&
+                 (trans = _transactions.get( new TransactionKey( y, tx ) )) != null) {
+        synchronized (trans) {
+          trans.add( new Message( c, h, b ) );
         }
 
+      } else if (tx != null) {
+        transactionError( y, tx, "No such transaction" );
+
       } else {
-        if (h == null) h = new HashMap();
-        String destination = (String)h.get("destination");
+        String destination = h.get("destination");
         if (c == Command.SEND) {
-          if (y instanceof IntraVMClient ||
-              _authenticator.authorizeSend( y.token(), destination )) {
-            synchronized( _listeners ) {
-              List l = (List)_listeners.get( destination );
-              if (l != null) {
-                l = new ArrayList(l);
-                for (Iterator i = l.iterator(); i.hasNext(); ) {
-                  Listener sh = (Listener)i.next();
-                  try {
-                    sh.message( h, b );
-                  } catch (Exception e) {
-                    // Don't allow listener code to break us
-                  }
-                }
-              } 
-            }
-          } else {
-            Map error_headers = new HashMap();
-            error_headers.put( "message:", "authorization refused");
-            error_headers.put( "type:", "send");
-            error_headers.put( "channel:", destination);
-            y.error( error_headers, "The message:\n-----\n"+b+
-                "\n-----\nAuthentication token refused for this channel");
-          }
+          send( destination, h, b, y, null );
 
         } else if (c == Command.SUBSCRIBE) {
           if (y instanceof IntraVMClient ||
               _authenticator.authorizeSubscribe( y.token(), destination )) {
-            synchronized (_listeners ) {
-              List l = (List)_listeners.get( destination );
-              if (l == null) {
-                l = new ArrayList();
-                _listeners.put( destination, l );
+            Subscription sub = subscription( destination, h, (Listener)y );
+            Queue q = _message_queue;
+            if (q == null || Destinations.isPattern( destination )) {
+              _subscriptions.subscribe( sub );
+            } else {
+              synchronized (q) {
+                if (_subscriptions.subscribe( sub )) {
+                  replay( q, destination, (Listener)y );
+                }
               }
-              if (!l.contains(y)) l.add( y );
             }
           } else {
-            Map error_headers = new HashMap();
+            Map<String,String> error_headers = new HashMap<String,String>();
             error_headers.put( "message:", "authorization refused");
             error_headers.put( "type:", "subscription");
             error_headers.put( "channel:", destination);
-            y.error( error_headers, "The message:\n-----\n"+b+
+            y.error( error_headers, "The message:\n-----\n"+Bodies.text( b )+
                 "\n-----\nAuthentication token refused for this channel");
           }
 
         } else if (c == Command.UNSUBSCRIBE) {
-          synchronized (_listeners) {
-            List l = (List)_listeners.get( destination );
-            if (l != null) l.remove( y );
+          if (destination != null) {
+            _subscriptions.unsubscribe( destination, (Listener)y );
+          } else {
+            _subscriptions.unsubscribeId( h.get("id"), (Listener)y );
+          }
+          if (y instanceof ServerConnection) {
+            ServerConnection sc = (ServerConnection)y;
+            redeliver( sc.abandon( destination, h.get("id") ), sc );
           }
 
-        } else if (c == Command.BEGIN) {
-          synchronized (_transactions) {
-            List trans = new ArrayList();
-            _transactions.put( y, trans );
+        } else if (c == Command.ACK || c == Command.NACK) {
+          if (y instanceof ServerConnection) {
+            // STOMP 1.2 acks by the "ack" header's value; 1.1 by message-id
+            String ack = h.get("id");
+            if (ack == null) ack = h.get("message-id");
+            ((ServerConnection)y).acknowledge( ack, c == Command.ACK );
           }
 
         } else if (c == Command.DISCONNECT) {
-          synchronized (_listeners) {
-            for (Iterator i=_listeners.values().iterator(); i.hasNext(); ) {
-              List l = (List)i.next();
-              l.remove( y );
+          _subscriptions.unsubscribeAll( (Listener)y );
+        }
+      }
+      String receipt = h.get("receipt");
+      if (receipt != null) {
+        Map<String,String> headers = new Headers();
+        headers.put( "receipt-id", receipt );
+        y.receive( Command.RECEIPT, headers, (String)null );
+      }
+    } catch (Exception e) {
+      // Don't allow listener code to break us
+    }
+  }
+
+
+  /**
+   * Publishes a SENT message to its subscribers, if the sender may.
+   *
+   * @param l The destination's subscribers, or null to look them up
+   */
+  private void send( String destination, Map<String,String> h, byte[] b, Authenticatable y, Subscription[] l ) throws IOException {
+    if (y instanceof IntraVMClient ||
+        _authenticator.authorizeSend( y.token(), destination )) {
+      if (expired( h )) return;
+      h.put( "message-id", _message_id_prefix + _message_ids.incrementAndGet() );
+      // A snapshot; nothing is locked while we deliver to it
+      if (l == null) l = _subscriptions.subscribers( destination );
+      Queue q = _message_queue;
+      if (l.length == 0 && q != null) {
+        // Checked again under the queue's lock, so a subscriber
+        // either sees this message in the queue or gets it directly
+        synchronized (q) {
+          l = _subscriptions.subscribers( destination );
+          if (l.length == 0) q.store( destination, h, b );
+        }
+      }
+      deliver( l, destination, h, b );
+    } else {
+      Map<String,String> error_headers = new HashMap<String,String>();
+      error_headers.put( "message:", "authorization refused");
+      error_headers.put( "type:", "send");
+      error_headers.put( "channel:", destination);
+      y.error( error_headers, "The message:\n-----\n"+Bodies.text( b )+
+          "\n-----\nAuthentication token refused for this channel");
+    }
+  }
+
+
+  /**
+   * Delivers the frames of a committed transaction as one batch.  The
+   * subscribers of each destination are looked up once, and each network
+   * subscriber's writer is held back until the whole batch is queued, so
+   * that the batch reaches each client in as few writes as possible.
+   * Receipts were sent as the frames arrived, so are not sent again.
+   */
+  private void commit( List<Message> frames, Authenticatable y ) {
+    Map<String,Subscription[]> lookups = new HashMap<String,Subscription[]>();
+    Set<ServerConnection> corked =
+      Collections.newSetFromMap( new IdentityHashMap<ServerConnection,Boolean>() );
+    try {
+      for (Iterator<Message> i = frames.iterator(); i.hasNext(); ) {
+        Message m = i.next();
+        Map<String,String> h = m.headers();
+        h.remove( "transaction" );
+        h.remove( "receipt" );
+        try {
+          if (m.command() == Command.SEND) {
+            String destination = h.get("destination");
+            Subscription[] l = lookups.get( destination );
+            if (l == null) {
+              l = _subscriptions.subscribers( destination );
+              lookups.put( destination, l );
+              for (int k = 0; k < l.length; k++) {
+                if (l[k].listener instanceof ServerConnection) {
+                  ServerConnection sc = (ServerConnection)l[k].listener;
+                  if (corked.add( sc )) sc.cork();
+                }
+              }
             }
+            send( destination, h, m.bodyBytes(), y, l );
+          } else {
+            receive( m.command(), h, m.bodyBytes(), y );
+          }
+        } catch (Exception e) {
+          // Don't allow listener code to break us
+        }
+      }
+    } finally {
+      for (Iterator<ServerConnection> i = corked.iterator(); i.hasNext(); ) {
+        i.next().uncork();
+      }
+    }
+  }
+
+
+  private void transactionError( Authenticatable y, String tx, String message ) {
+    Map<String,String> error_headers = new HashMap<String,String>();
+    error_headers.put( "message", message );
+    if (tx != null) error_headers.put( "transaction", tx );
+    y.error( error_headers, message );
+  }
+
+
+  /**
+   * Transactions are named by the client that began them and the value of
+   * the "transaction" header, which may be missing.
+   */
+  private static final class TransactionKey {
+    final Authenticatable owner;
+    final String id;
+
+    TransactionKey( Authenticatable owner, String id ) {
+      this.owner = owner;
+      this.id = id;
+    }
+
+    public boolean equals( Object o ) {
+      if (!(o instanceof TransactionKey)) return false;
+      TransactionKey k = (TransactionKey)o;
+      return k.owner == owner && (id == null ? k.id == null : id.equals( k.id ));
+    }
+
+    public int hashCode() {
+      return System.identityHashCode( owner ) * 31 + (id == null ? 0 : id.hashCode());
+    }
+  }
+
+
+  /**
+   * Makes the subscription a SUBSCRIBE frame asks for.
+   */
+  private Subscription subscription( String destination, Map<String,String> h, Listener y ) {
+    String ack = h.get("ack");
+    int prefetch = 0;
+    if (y instanceof ServerConnection &&
+        ("client".equals( ack ) || "client-individual".equals( ack ))) {
+      prefetch = _prefetch;
+      String count = h.get("prefetch-count");
+      if (count != null) {
+        try {
+          prefetch = Integer.parseInt( count.trim() );
+        } catch (NumberFormatException e) { /* Keep the server's */ }
+      }
+    }
+    return new Subscription( destination, y, h.get("id"),
+                             "client".equals( ack ), Math.max( 0, prefetch ) );
+  }
+
+
+  /**
+   * Delivers a message to a snapshot of subscribers.  Network clients all
+   * get the same bytes, so the MESSAGE is encoded once, when the first of
+   * them needs it.
+   */
+  private void deliver( Subscription[] l, String destination, Map<String,String> h, byte[] b ) {
+    if (l.length > 1 && destination.startsWith( QUEUE_PREFIX )) {
+      dispatch( l, destination, h, b, null );
+      return;
+    }
+    EncodedFrame frame = null;
+    SlowConsumerPolicy policy = null;
+    for (int i = 0; i < l.length; i++) {
+      Listener sh = l[i].listener;
+      try {
+        if (sh instanceof ServerConnection) {
+          if (frame == null) {
+            frame = encode( h, b );
+            policy = getSlowConsumerPolicy( destination );
           }
+          offer( l[i], frame, policy, h, b );
+        } else {
+          Bodies.message( sh, h, b );
         }
+      } catch (Exception e) {
+        // Don't allow listener code to break us
       }
-      if (h != null) {
-        String receipt = (String)h.get("receipt");
-        if (receipt != null) {
-          HashMap headers = new HashMap();
-          headers.put( "receipt-id", receipt );
-          y.receive( Command.RECEIPT, headers, null );
+    }
+    if (frame != null) frame.release();
+  }
+
+
+  /**
+   * Delivers a message sent to a queue destination to exactly one of its
+   * subscribers.  Subscribers are tried in turn, starting with the one the
+   * dispatch policy picks, until one of them takes the message.
+   * Subscribers whose prefetch window is full are only picked if every
+   * subscriber's is.
+   *
+   * @param frame The message already encoded, or null
+   * @return false if nobody took the message
+   */
+  private boolean dispatch( Subscription[] l, String destination, Map<String,String> h, byte[] b, EncodedFrame frame ) {
+    int n = l.length;
+    int first = (_rotation.getAndIncrement( destination.hashCode() & (ROTATIONS - 1) ) & Integer.MAX_VALUE) % n;
+    int least = Integer.MAX_VALUE;
+    for (int i = 0, k = first; i < n && least > 0; i++, k = (k + 1) % n) {
+      if (!l[k].ready()) continue;
+      int load = _dispatch == Dispatch.LEAST_LOADED && l[k].listener instanceof ServerConnection ?
+        ((ServerConnection)l[k].listener).backlog() : 0;
+      if (load < least) {
+        least = load;
+        first = k;
+      }
+    }
+
+    boolean encoded = frame == null;
+    SlowConsumerPolicy policy = getSlowConsumerPolicy( destination );
+    try {
+      for (int i = 0; i < n; i++) {
+        Subscription s = l[(first + i) % n];
+        try {
+          if (s.listener instanceof ServerConnection) {
+            if (frame == null) frame = encode( h, b );
+            if (offer( s, frame, policy, h, b )) return true;
+          } else {
+            Bodies.message( s.listener, h, b );
+            return true;
+          }
+        } catch (Exception e) {
+          // Don't allow listener code to break us; try the next one
+        }
+      }
+      return false;
+    } finally {
+      if (encoded && frame != null) frame.release();
+    }
+  }
+
+
+  /**
+   * Encodes a MESSAGE for network subscribers, noting when it expires so
+   * that it can be dropped if it is still queued then.  If its headers are
+   * written differently for clients that speak 1.2, it is encoded for them
+   * as well.
+   */
+  private static EncodedFrame encode( Map<String,String> h, byte[] b ) {
+    FrameEncoder encoder = FrameEncoder.local();
+    long expires = Headers.expires( h );
+    EncodedFrame frame = encoder.share( Command.MESSAGE, h, b );
+    frame.setExpires( expires );
+    if (encoder.escapingMatters()) {
+      EncodedFrame escaped = encoder.share( Command.MESSAGE, h, b, true );
+      escaped.setExpires( expires );
+      frame.setEscaped( escaped );
+    }
+    return frame;
+  }
+
+
+  /**
+   * True if a message's "expires" time has passed.
+   */
+  private static boolean expired( Map<String,String> h ) {
+    long expires = Headers.expires( h );
+    return expires > 0 && expires <= System.currentTimeMillis();
+  }
+
+
+  /**
+   * Hands an encoded message to a network subscriber, tracking it until it
+   * is acknowledged if the subscription asked for that.
+   *
+   * @return false if the message will not reach the client
+   */
+  private boolean offer( Subscription s, EncodedFrame frame, SlowConsumerPolicy policy, Map<String,String> h, byte[] b ) {
+    ServerConnection c = (ServerConnection)s.listener;
+    if (!s.tracked()) return c.deliver( s, frame, policy );
+
+    Delivery d = new Delivery( s, h.get("message-id"), h, b, frame, policy );
+    if (c.deliver( d )) return true;
+    d.release();
+    return false;
+  }
+
+
+  /**
+   * Takes back messages a client refused or abandoned.  A message sent to a
+   * queue destination goes to another of its subscribers, or to the
+   * server's Queue if it has no others; anything else is dropped.
+   */
+  void redeliver( Delivery d, ServerConnection from ) {
+    try {
+      String destination = d.headers.get("destination");
+      if (destination != null && destination.startsWith( QUEUE_PREFIX ) &&
+          !d.frame.expired( System.currentTimeMillis() )) {
+        Subscription[] all = _subscriptions.subscribers( destination );
+        List<Subscription> others = new ArrayList<Subscription>( all.length );
+        for (int i = 0; i < all.length; i++) {
+          if (all[i].listener != from) others.add( all[i] );
+        }
+        if (others.isEmpty() ||
+            !dispatch( others.toArray( new Subscription[ others.size() ] ),
+                       destination, d.headers, d.body, d.frame )) {
+          Queue q = _message_queue;
+          if (q != null) q.store( destination, d.headers, d.body );
         }
       }
     } catch (Exception e) {
       // Don't allow listener code to break us
+    } finally {
+      d.release();
+    }
+  }
+
+
+  private void redeliver( List<Delivery> deliveries, ServerConnection from ) {
+    for (Iterator<Delivery> i = deliveries.iterator(); i.hasNext(); ) {
+      redeliver( i.next(), from );
+    }
+  }
+
+
+  /**
+   * Hands the messages kept for a destination to a new subscriber.
+   */
+  private void replay( Queue q, final String destination, Listener y ) throws IOException {
+    Subscription[] all = _subscriptions.subscribers( destination );
+    for (int i = 0; i < all.length; i++) {
+      if (all[i].listener == y) {
+        final Subscription[] l = new Subscription[] { all[i] };
+        q.deliver( destination, new BinaryListener() {
+          public void message( Map<String,String> h, byte[] b ) {
+            if (!expired( h )) deliver( l, destination, h, b );
+          }
+        } );
+        return;
+      }
     }
   }
 
@@ -541,6 +1144,18 @@ public class Server {
   }
 
 
+  /**
+   * Returns a Stomp client for intra-VM communications with the server
+   * that does not make senders wait for delivery.  Frames sent by the
+   * client go into a ring buffer of the given size, and are handed to the
+   * server, in order, on a thread belonging to the client; senders only
+   * wait when the ring is full.
+   */
+  public Stomp getAsyncClient( int capacity ) {
+    return new IntraVMClient( this, capacity );
+  }
+
+
   /**
    * Gozirra is probably not the best choice for a stand-alone server.  If
    * you are tempted to use it as such, you might want to look at ActiveMQ,
@@ -0,0 +1,611 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.security.auth.login.LoginException;
+
+/**
+ * The server's end of a single network client connection.  This class holds
+ * the session logic that is the same no matter how bytes reach the client:
+ * it handles and consumes CONNECT, DISCONNECT, and ERROR frames, relays
+ * everything else to the Server, and sends RECEIPTs back to the client.
+ *
+ * Frames for the client are queued rather than written by the caller, so a
+ * publisher never waits on a slow client.  Subclasses only have to know how
+ * to drain the queue onto the wire and how to tear the connection down.
+ */
+abstract class ServerConnection implements BinaryListener, Authenticatable
+{
+    protected final Server server;
+
+    private Object  clientToken;
+    private boolean authenticated = false;
+
+    /**
+     * True once the client has agreed to speak 1.2, so that headers are
+     * escaped in the frames it is sent.
+     */
+    private volatile boolean escapes = false;
+
+    /**
+     * Frames waiting to go to the client.  Publishers only append; each
+     * subclass drains it with its own writer.
+     */
+    protected final OutboundQueue outbound;
+
+    private volatile boolean closeWhenDrained = false;
+
+    /**
+     * Messages out with the client awaiting acknowledgement, by message id,
+     * in the order they were sent, and the subscriptions they were sent
+     * for.
+     */
+    private final LinkedHashMap<String, Delivery> unacked       = new LinkedHashMap<>();
+    private final Set<Subscription>               acknowledging =
+        Collections.newSetFromMap(new IdentityHashMap<Subscription, Boolean>());
+
+    /**
+     * Heart-beat state.  heard is set by every frame from the client and
+     * cleared by each check.
+     */
+    private volatile boolean            heard = true;
+    private volatile TimerWheel.Timeout sendTimer;
+    private volatile TimerWheel.Timeout receiveTimer;
+    private long                        lastQueued;
+
+    protected ServerConnection(Server server)
+    {
+        this.server   = server;
+        this.outbound = new OutboundQueue();
+    }
+
+    public Object token()
+    {
+        return clientToken;
+    }
+
+    boolean escapes()
+    {
+        return escapes;
+    }
+
+    /**
+     * Tests whether the supplied port is the local port this connection
+     * was accepted on.
+     *
+     * @param port the port number to test.
+     * @return true iff the supplied port matches the listening port of this
+     *  connection.
+     */
+    protected abstract boolean isPort(int port);
+
+    /**
+     * Close the connection with the client.
+     */
+    protected abstract void close();
+
+    /**
+     * Called when frames have been queued on an idle connection.  The
+     * subclass must arrange for the queue to be drained, without blocking
+     * the caller, and call drained() once gather() finds nothing left.
+     */
+    protected abstract void startWriting();
+
+    /**
+     * Called by the subclass's writer when it has emptied the queue.
+     */
+    protected void drained()
+    {
+        if (closeWhenDrained)
+            close();
+    }
+
+    /**
+     * Queues a single frame for the client.  Used by message(), receipt(),
+     * and error() to deliver the message to the client.
+     */
+    protected void transmit(Command c, Map<String, String> h, String b)
+    {
+        EncodedFrame frame = FrameEncoder.local().share(c, h, b, escapes);
+        if (outbound.offer(frame, null) == OutboundQueue.START_WRITER)
+            startWriting();
+        frame.release();
+    }
+
+    /**
+     * Queues a single frame whose body is bytes for the client.
+     */
+    protected void transmit(Command c, Map<String, String> h, byte[] b)
+    {
+        EncodedFrame frame = FrameEncoder.local().share(c, h, b, escapes);
+        if (outbound.offer(frame, null) == OutboundQueue.START_WRITER)
+            startWriting();
+        frame.release();
+    }
+
+    /**
+     * Called by the server; queues a MESSAGE frame that has already been
+     * encoded, adding the id of the subscription it matched.  The caller
+     * keeps its own reference to the frame.
+     *
+     * @param policy What to do if this client is too far behind
+     * @return false if the message will not reach the client
+     */
+    boolean deliver(Subscription subscription, EncodedFrame frame, SlowConsumerPolicy policy)
+    {
+        if (closeWhenDrained)
+            return false;
+
+        switch (outbound.offer(frame.as(escapes), subscription.idHeader, policy, true))
+        {
+            case OutboundQueue.START_WRITER:
+                startWriting();
+                return true;
+            case OutboundQueue.QUEUED:
+                return true;
+            case OutboundQueue.REJECTED:
+                // Nothing waiting is worth sending now, except the reason
+                outbound.discardMessages();
+                transmit(Command.ERROR, null, "Slow consumer: too many messages waiting for delivery");
+                closeWhenDrained();
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called by the server; sends a message for a subscription that
+     * acknowledges what it receives, if there is room in the subscription's
+     * window, or holds it until there is.  On success the connection takes
+     * over the delivery.
+     *
+     * @return false if the message will not reach the client
+     */
+    boolean deliver(Delivery d)
+    {
+        if (closeWhenDrained)
+            return false;
+
+        Subscription s = d.subscription;
+        synchronized (s)
+        {
+            if (s.unacked >= s.prefetch || !s.held.isEmpty())
+            {
+                if (s.held.size() >= d.policy.getMaxFrames())
+                {
+                    d.policy.dropped();
+                    return false;
+                }
+                s.held.add(d);
+                return true;
+            }
+            s.unacked++;
+        }
+        return send(d);
+    }
+
+    /**
+     * Queues a tracked message for the client.
+     */
+    private boolean send(Delivery d)
+    {
+        synchronized (unacked)
+        {
+            unacked.put(d.messageId, d);
+            acknowledging.add(d.subscription);
+        }
+
+        switch (outbound.offer(d.frame.as(escapes), d.extraHeaders, d.policy, false))
+        {
+            case OutboundQueue.START_WRITER:
+                startWriting();
+                return true;
+            case OutboundQueue.QUEUED:
+                return true;
+            case OutboundQueue.REJECTED:
+                outbound.discardMessages();
+                transmit(Command.ERROR, null, "Slow consumer: too many messages waiting for delivery");
+                closeWhenDrained();
+                break;
+        }
+
+        synchronized (unacked)
+        {
+            unacked.remove(d.messageId);
+        }
+        synchronized (d.subscription)
+        {
+            d.subscription.unacked--;
+        }
+        return false;
+    }
+
+    /**
+     * Called by the server when the client ACKs or NACKs a message.  For a
+     * subscription with an ack mode of "client", every earlier message sent
+     * for the same subscription is settled along with it.  Messages the
+     * client refused are handed back to the server, and held messages are
+     * sent as the window opens.
+     *
+     * @param accepted true for ACK, false for NACK
+     */
+    void acknowledge(String messageId, boolean accepted)
+    {
+        List<Delivery> settled = new ArrayList<>();
+        synchronized (unacked)
+        {
+            Delivery d = messageId == null ? null : unacked.get(messageId);
+            if (d == null)
+                return;
+
+            if (d.subscription.cumulative)
+            {
+                for (Iterator<Delivery> i = unacked.values().iterator(); i.hasNext(); )
+                {
+                    Delivery e = i.next();
+                    if (e.subscription == d.subscription)
+                    {
+                        i.remove();
+                        settled.add(e);
+                        if (e == d)
+                            break;
+                    }
+                }
+            }
+            else
+            {
+                unacked.remove(messageId);
+                settled.add(d);
+            }
+        }
+
+        Subscription s = settled.get(0).subscription;
+        synchronized (s)
+        {
+            s.unacked -= settled.size();
+        }
+
+        for (Delivery d : settled)
+        {
+            if (accepted)
+                d.release();
+            else
+                server.redeliver(d, this);
+        }
+
+        // Fill the window back up from what was held, dropping messages
+        // that expired while they waited
+        long now = System.currentTimeMillis();
+        while (true)
+        {
+            Delivery next;
+            synchronized (s)
+            {
+                if (s.unacked >= s.prefetch || s.held.isEmpty())
+                    return;
+                next = s.held.poll();
+                if (next.frame.expired(now))
+                {
+                    next.release();
+                    continue;
+                }
+                s.unacked++;
+            }
+            if (!send(next))
+                server.redeliver(next, this);
+        }
+    }
+
+    /**
+     * Called by the server when the client stops listening; takes back every
+     * tracked message, sent or held, for the matching subscriptions.
+     *
+     * @param destination The destination unsubscribed from, or null
+     * @param id The id of the subscription ended, or null; if both are null
+     *  every subscription matches
+     * @return the messages, which the caller takes over
+     */
+    List<Delivery> abandon(String destination, String id)
+    {
+        List<Delivery> taken = new ArrayList<>();
+        synchronized (unacked)
+        {
+            for (Iterator<Subscription> i = acknowledging.iterator(); i.hasNext(); )
+            {
+                Subscription s = i.next();
+                if (destination == null ? id != null && !id.equals(s.id) : !destination.equals(s.destination))
+                    continue;
+
+                i.remove();
+                for (Iterator<Delivery> j = unacked.values().iterator(); j.hasNext(); )
+                {
+                    Delivery d = j.next();
+                    if (d.subscription == s)
+                    {
+                        j.remove();
+                        taken.add(d);
+                    }
+                }
+                synchronized (s)
+                {
+                    taken.addAll(s.held);
+                    s.held.clear();
+                    s.unacked = 0;
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Holds back writing to the client while the server queues a batch of
+     * frames for it.
+     */
+    void cork()
+    {
+        outbound.cork();
+    }
+
+    void uncork()
+    {
+        if (outbound.uncork())
+            startWriting();
+    }
+
+    /**
+     * The number of frames waiting to go to the client.
+     */
+    int backlog()
+    {
+        return outbound.frames();
+    }
+
+    /**
+     * Closes the connection once everything queued has been written.
+     */
+    private void closeWhenDrained()
+    {
+        closeWhenDrained = true;
+        if (outbound.frames() == 0)
+            close();
+    }
+
+    /**
+     * Called by the reader when the client has gone, or has sent a frame
+     * too large to take; closes the connection once anything already
+     * queued for the client, such as the ERROR saying why, is written.
+     */
+    public void disconnect()
+    {
+        closeWhenDrained();
+    }
+
+    /**
+     * Gets called when messages come in from the client, and relays the
+     * message to the server.  This method handles and consumes CONNECT,
+     * DISCONNECT, and ERROR messages.  It is also responsible for sending
+     * RECEIPTs back to the client.
+     */
+    public void receive(Command c, Map<String, String> h, String b)
+    {
+        receive(c, h, Bodies.bytes(b));
+    }
+
+    /**
+     * Gets called with every frame the client sends; bodies are relayed to
+     * the server as the bytes they arrived as.
+     */
+    public void receive(Command c, Map<String, String> h, byte[] b)
+    {
+        heard = true;
+
+        if (c == Command.CONNECT || c == Command.STOMP)
+        {
+            String version = Versions.negotiate(h == null ? null : h.get("accept-version"));
+            if (version == null)
+            {
+                Map<String, String> headers = new Headers();
+                headers.put("version", String.join(",", Versions.SUPPORTED));
+                transmit(Command.ERROR, headers, "Supported protocol versions are " + String.join(" ", Versions.SUPPORTED));
+                closeWhenDrained();
+                return;
+            }
+
+            String login    = h == null ? null : h.get("login");
+            String passcode = h == null ? null : h.get("passcode");
+            try
+            {
+                clientToken = server.authenticator().connect(login, passcode);
+                Map<String, String> headers = new Headers();
+                headers.put("version", version);
+                headers.put("session", String.valueOf(hashCode()));
+
+                // Heart-beats came with 1.1; a 1.0 client knows nothing of them
+                int[] beats = server.heartBeat();
+                boolean beating = Versions.heartBeats(version);
+                if (beating)
+                    headers.put("heart-beat", beats[0] + "," + beats[1]);
+                transmit(Command.CONNECTED, headers, (String) null);
+                escapes       = Versions.escapes(version);
+                authenticated = true;
+                if (beating)
+                    startHeartBeats(h == null ? null : h.get("heart-beat"), beats);
+            }
+            catch (LoginException e)
+            {
+                transmit(Command.ERROR, null, "Login failed: " + e.getMessage());
+            }
+        }
+        else if (c == Command.RECEIPT)
+        {
+            // Only ever generated by the server; pass it straight to the client
+            receipt(h);
+        }
+        else if (!authenticated)
+        {
+            transmit(Command.ERROR, null, "Not CONNECTed, or not authorized");
+        }
+        else if (c == Command.DISCONNECT)
+        {
+            String receipt = h == null ? null : h.get("receipt");
+            if (receipt != null)
+            {
+                Map<String, String> headers = new Headers();
+                headers.put("receipt-id", receipt);
+                receipt(headers);
+            }
+            server.disconnect(this);
+            closeWhenDrained();
+        }
+        else if (c == Command.ERROR)
+        {
+            // Then there was an error in the client message.  Pass it back.
+            error(h, Bodies.text(b));
+        }
+        else if (c != Command.HEARTBEAT)
+        {
+            server.receive(c, h, b, this);
+        }
+    }
+
+    /**
+     * Negotiates heart-beats with the client.  Each side sends at the slower
+     * of the rates it offers and the other asks for, and neither if either
+     * says 0.  Heart-beats are only sent after a period in which nothing
+     * else was; a client that has been silent for half as long again as its
+     * period is taken to be gone, and disconnected.
+     *
+     * @param offer The client's heart-beat header, or null
+     * @param beats The server's send and receive periods
+     */
+    private void startHeartBeats(String offer, int[] beats)
+    {
+        int canSend = 0, wants = 0;
+        if (offer != null)
+        {
+            int comma = offer.indexOf(',');
+            try
+            {
+                canSend = Integer.parseInt(offer.substring(0, comma).trim());
+                wants   = Integer.parseInt(offer.substring(comma + 1).trim());
+            }
+            catch (RuntimeException e)
+            {
+                // Malformed; no heart-beats
+            }
+        }
+
+        // Look twice a period, so that no more than a period passes
+        // without something being sent
+        if (beats[0] > 0 && wants > 0)
+            sendHeartBeat(Math.max(1, Math.max(beats[0], wants) / 2));
+        if (beats[1] > 0 && canSend > 0)
+        {
+            heard = false;
+            checkHeartBeat(Math.max(beats[1], canSend) * 3L / 2);
+        }
+    }
+
+    private void sendHeartBeat(final long period)
+    {
+        sendTimer = TimerWheel.shared().schedule(new Runnable()
+        {
+            public void run()
+            {
+                if (isClosed())
+                    return;
+
+                if (outbound.queued() == lastQueued &&
+                    outbound.offer(EncodedFrame.HEARTBEAT, null) == OutboundQueue.START_WRITER)
+                    startWriting();
+
+                lastQueued = outbound.queued();
+                sendHeartBeat(period);
+            }
+        }, period);
+    }
+
+    private void checkHeartBeat(final long period)
+    {
+        receiveTimer = TimerWheel.shared().schedule(new Runnable()
+        {
+            public void run()
+            {
+                if (isClosed())
+                    return;
+
+                if (!heard)
+                {
+                    // Closing hands back unacknowledged messages, which
+                    // may wait on slow consumers; not on the timer's thread
+                    server.writerPool().execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if (!isClosed())
+                                close();
+                        }
+                    });
+                    return;
+                }
+
+                heard = false;
+                checkHeartBeat(period);
+            }
+        }, period);
+    }
+
+    /**
+     * Cancels heart-beats, for a connection that has gone away.
+     */
+    void stopHeartBeats()
+    {
+        TimerWheel.Timeout t = sendTimer;
+        if (t != null)
+            t.cancel();
+
+        t = receiveTimer;
+        if (t != null)
+            t.cancel();
+    }
+
+    /**
+     * Called by the server; sends a message to this client.
+     */
+    public void message(Map<String, String> headers, String body)
+    {
+        transmit(Command.MESSAGE, headers, body);
+    }
+
+    /**
+     * Called by the server; sends a message with a binary body to this
+     * client.
+     */
+    public void message(Map<String, String> headers, byte[] body)
+    {
+        transmit(Command.MESSAGE, headers, body);
+    }
+
+    /**
+     * Called by the server; sends a receipt to this client.
+     */
+    public void receipt(Map<String, String> headers)
+    {
+        transmit(Command.RECEIPT, headers, (String) null);
+    }
+
+    /**
+     * Called by the server.  Sends an error to the client.
+     */
+    public void error(Map<String, String> headers, String message)
+    {
+        transmit(Command.ERROR, headers, message);
+    }
+}
@@ -0,0 +1,154 @@
+package net.ser1.stomp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the server does when a network subscriber falls behind.
+ *
+ * Every network client has a queue of frames waiting to be written to it.
+ * A policy bounds the MESSAGEs in that queue, in frames and in bytes, and
+ * says what happens to a MESSAGE that would take the queue past either
+ * bound.  Receipts and errors are never dropped.
+ *
+ * A policy can be set for the whole server and overridden per destination;
+ * the policy of the destination a message was sent to is the one applied.
+ * A destination's policy covers exactly that destination, not those below
+ * it, and is never a wildcard pattern.
+ * Each policy counts what it has done, across every client it applies to.
+ *
+ * Example:
+ * <pre>
+ *   Server s = new Server( 61626 );
+ *   // Prices are only worth having while fresh
+ *   s.setSlowConsumerPolicy( "/prices/GBP-EUR", new SlowConsumerPolicy(
+ *       SlowConsumerPolicy.Action.DROP_OLDEST, 1000, 1024 * 1024 ) );
+ * </pre>
+ *
+ * @see Server#setSlowConsumerPolicy(SlowConsumerPolicy)
+ */
+public class SlowConsumerPolicy
+{
+    public static enum Action
+    {
+        /**
+         * Make room by discarding the oldest MESSAGEs that have not started
+         * going out yet.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the MESSAGE that does not fit.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard everything waiting, send the client an ERROR frame, and
+         * close the connection.
+         */
+        DISCONNECT,
+        /**
+         * Make the publisher wait for room, for at most the policy's block
+         * timeout, after which the MESSAGE is discarded.  The wait holds up
+         * whichever thread is publishing, which for a network publisher is
+         * its reader, so keep the timeout short.  An I/O loop of the
+         * SELECTOR engine never waits, since it may be the thread that has
+         * to drain the slow client, and every other client on the loop
+         * would stall with it; there, BLOCK acts as DROP_NEWEST.
+         */
+        BLOCK
+    }
+
+    private final Action action;
+    private final int    maxFrames;
+    private final long   maxBytes;
+    private final long   blockTimeout;
+
+    private final LongAdder dropped      = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder blocked      = new LongAdder();
+
+    /**
+     * @param action What to do with a MESSAGE that does not fit
+     * @param maxFrames The most frames that may wait for one client
+     * @param maxBytes The most bytes that may wait for one client
+     */
+    public SlowConsumerPolicy(Action action, int maxFrames, long maxBytes)
+    {
+        this(action, maxFrames, maxBytes, 1000);
+    }
+
+    /**
+     * @param action What to do with a MESSAGE that does not fit
+     * @param maxFrames The most frames that may wait for one client
+     * @param maxBytes The most bytes that may wait for one client
+     * @param blockTimeout For BLOCK, the longest a publisher waits for room,
+     *  in milliseconds
+     */
+    public SlowConsumerPolicy(Action action, int maxFrames, long maxBytes, long blockTimeout)
+    {
+        if (action == null)
+            throw new IllegalArgumentException("action cannot be null");
+
+        this.action       = action;
+        this.maxFrames    = maxFrames;
+        this.maxBytes     = maxBytes;
+        this.blockTimeout = blockTimeout;
+    }
+
+    public Action getAction()
+    {
+        return action;
+    }
+
+    public int getMaxFrames()
+    {
+        return maxFrames;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getBlockTimeout()
+    {
+        return blockTimeout;
+    }
+
+    /**
+     * The number of MESSAGEs discarded by this policy.
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * The number of clients disconnected by this policy.
+     */
+    public long getDisconnected()
+    {
+        return disconnected.sum();
+    }
+
+    /**
+     * The number of times a publisher had to wait for room.
+     */
+    public long getBlocked()
+    {
+        return blocked.sum();
+    }
+
+    void dropped()
+    {
+        dropped.increment();
+    }
+
+    void disconnected()
+    {
+        disconnected.increment();
+    }
+
+    void blocked()
+    {
+        blocked.increment();
+    }
+}
@@ -1,10 +1,21 @@
 package net.ser1.stomp;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Stomp messaging implementation.
@@ -13,8 +24,24 @@ import java.util.Stack;
  * a listener, then incoming messages are delivered to all listeners
  * of that channel, and the message is deleted from the queue. If no
  * listener was provided for that channel, then messages are placed in
- * a queue and can be retrieved with getNext(). In all cases, when
- * messages are retrieved, they are deleted from the queue.
+ * a queue and can be retrieved, oldest first, with getNext(), or with
+ * poll() and take(), which wait for a message to arrive. In all cases,
+ * when messages are retrieved, they are deleted from the queue.
+ *
+ * A channel name may be a wildcard, as described in Destinations; messages
+ * are delivered to the listeners of every wildcard that matches them as
+ * well as to the listeners of the channel itself.
+ *
+ * Listeners are called on the thread that received the message, unless a
+ * listener executor has been set, in which case each listener is called on
+ * that executor instead, so the connection keeps being read while they
+ * work.  A listener is never called for a message until it has returned
+ * from the one before, so each listener sees messages in the order they
+ * arrived, while different listeners run in parallel.
+ *
+ * A listener is not given messages that have gone stale: those that waited
+ * longer than its getTimeout() for their turn, or that are past their
+ * "expires" time by more than its getTimeoutThreshold().
  *
  * (c)2005 Sean Russell
  */
@@ -25,6 +52,27 @@ public abstract class Stomp
      */
     private final Map<String, List<Listener>> channelListeners = new HashMap<>();
 
+    /**
+     * The listeners of wildcard channels again, in a trie, so that finding
+     * those that match a destination costs time proportional to its depth
+     * rather than to the number of channels.  Changed while holding the
+     * channelListeners lock.
+     */
+    private final SubscriptionRegistry patterns = new SubscriptionRegistry();
+
+    /**
+     * Runs listeners, or null to run them on the receiving thread.
+     */
+    private volatile Executor listenerExecutor;
+
+    /**
+     * Each listener's own serial executor on the listenerExecutor, keeping
+     * its messages in order.  Guarded by the channelListeners lock.
+     */
+    private final Map<Listener, SerialExecutor> lanes = new HashMap<>();
+
+    private static ExecutorService listenerThreads;
+
     /**
      * Things that are listening for communication errors. Contains Listeners.
      */
@@ -35,16 +83,24 @@ public abstract class Stomp
      */
     private final List<Listener> heartbeatListeners = new ArrayList<>();
 
+    /**
+     * The most unclaimed messages kept for any one destination, unless
+     * changed with setUnclaimedLimit().
+     */
+    public static final int DEFAULT_UNCLAIMED_LIMIT = 10000;
+
     /**
      * A message queue; where messages that have no listeners are stored.
-     * Contains Messages.
      */
-    private final Stack<Message> messageQueue = new Stack<>();
+    private final UnclaimedMessages messageQueue = new UnclaimedMessages(DEFAULT_UNCLAIMED_LIMIT);
 
     /**
-     * Incoming receipts (as String IDs)
+     * Receipts, by id, that somebody is waiting for or that have come in.
+     * A receipt asked for by one of the Async methods is forgotten as soon
+     * as it arrives; any other is kept until cleared.
      */
-    private final List<String> receipts = new ArrayList<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> receipts = new ConcurrentHashMap<>();
+    private final AtomicLong                                         receiptIds = new AtomicLong();
 
     /**
      * True if connected to a server; false otherwise
@@ -75,6 +131,20 @@ public abstract class Stomp
      */
     protected abstract void transmit(Command command, Map<String, String> header, String body);
 
+    /**
+     * Transmit a message whose body is bytes.  Implementations that can
+     * send bytes as they are should override this; by default the body is
+     * decoded as UTF-8 text and sent as such.
+     *
+     * @param command The Stomp command. If null, causes an error.
+     * @param header A map of headers. If null, an empty map is used.
+     * @param body The body of the message. May be null.
+     */
+    protected void transmit(Command command, Map<String, String> header, byte[] body)
+    {
+        transmit(command, header, Bodies.text(body));
+    }
+
     /**
      * Disconnect from a server. Must be implemented by the child class.
      */
@@ -83,6 +153,46 @@ public abstract class Stomp
         disconnect(null);
     }
 
+    /**
+     * Sets where listeners are called.  With an executor, each listener is
+     * called on it, one message at a time, so a slow listener holds up
+     * neither reading from the connection nor other listeners.  With null,
+     * the default, listeners are called in turn on the thread that received
+     * the message.
+     *
+     * Either listenerThreads() or Receiver.virtualThreads() will do; any
+     * executor that runs tasks on other threads will.
+     */
+    public void setListenerExecutor(Executor executor)
+    {
+        synchronized (channelListeners)
+        {
+            listenerExecutor = executor;
+            lanes.clear();
+        }
+    }
+
+    /**
+     * A pool of daemon threads, shared by every Stomp in the VM, for calling
+     * listeners.  Threads are started as they are needed and stop after a
+     * minute idle.
+     */
+    public static synchronized Executor listenerThreads()
+    {
+        if (listenerThreads == null)
+        {
+            final AtomicInteger count = new AtomicInteger();
+            listenerThreads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), r ->
+                {
+                    Thread t = new Thread(r, "Stomp-Listener-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+        return listenerThreads;
+    }
+
     /**
      * Transmit a message to a server.
      *
@@ -91,7 +201,7 @@ public abstract class Stomp
      */
     protected void transmit(Command command, Map<String, String> header)
     {
-        transmit(command, header, null);
+        transmit(command, header, (String) null);
     }
 
     /**
@@ -101,7 +211,7 @@ public abstract class Stomp
      */
     protected void transmit(Command command)
     {
-        transmit(command, null, null);
+        transmit(command, null, (String) null);
     }
 
     /**
@@ -141,7 +251,7 @@ public abstract class Stomp
      */
     public void commit(Map<String, String> header)
     {
-        transmit(Command.BEGIN, header);
+        transmit(Command.COMMIT, header);
     }
 
     /**
@@ -161,9 +271,33 @@ public abstract class Stomp
      */
     public void commitW(Map<String, String> header) throws InterruptedException
     {
-        String receipt = addReceipt(header);
+        await(commitAsync(header));
+    }
+
+    /**
+     * Commits a transaction, asking the server for a receipt.
+     *
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> commitAsync()
+    {
+        return commitAsync(null);
+    }
+
+    /**
+     * Commits a transaction, asking the server for a receipt.
+     *
+     * @param header Additional headers to send to the server.
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> commitAsync(Map<String, String> header)
+    {
+        if (header == null)
+            header = new Headers();
+
+        CompletableFuture<Void> receipt = expectReceipt(header);
         transmit(Command.COMMIT, header);
-        waitOnReceipt(receipt);
+        return receipt;
     }
 
     /**
@@ -186,10 +320,54 @@ public abstract class Stomp
         transmit(Command.ABORT, header);
     }
 
+    /**
+     * Begins a named transaction.  Any number of named transactions may be
+     * open at once; frames sent with a "transaction" header naming one are
+     * held by the server until it is committed or aborted.
+     *
+     * @param transaction The name of the transaction
+     */
+    public void beginTransaction(String transaction)
+    {
+        transmit(Command.BEGIN, transaction(transaction));
+    }
+
+    /**
+     * Commits a named transaction, delivering the messages sent in it.
+     *
+     * @param transaction The name of the transaction
+     */
+    public void commitTransaction(String transaction)
+    {
+        transmit(Command.COMMIT, transaction(transaction));
+    }
+
+    /**
+     * Aborts a named transaction, discarding the messages sent in it.
+     *
+     * @param transaction The name of the transaction
+     */
+    public void abortTransaction(String transaction)
+    {
+        transmit(Command.ABORT, transaction(transaction));
+    }
+
+    private static Map<String, String> transaction(String transaction)
+    {
+        if (transaction == null)
+            throw new IllegalArgumentException("transaction cannot be null");
+
+        Map<String, String> header = new Headers();
+        header.put("transaction", transaction);
+        return header;
+    }
+
     /**
      * Subscribe to a channel.
      *
-     * @param name The name of the channel to listen on
+     * @param name The name of the channel to listen on.  A segment of "*"
+     *  matches any one segment, and a final segment of "#" or ">" matches
+     *  the rest of the destination.
      */
     public void subscribe(String name)
     {
@@ -230,53 +408,74 @@ public abstract class Stomp
         synchronized (channelListeners)
         {
             if (channelListener != null)
-            {
-                List<Listener> list = channelListeners.get(channelName);
-                if (list == null)
-                {
-                    list = new ArrayList<>();
-                    channelListeners.put(channelName, list);
-                }
-
-                if (!list.contains(channelListener))
-                    list.add(channelListener);
-            }
+                listen(channelName, channelListener);
         }
 
         if (headers == null)
-            headers = new HashMap<>();
+            headers = new Headers();
 
         headers.put("destination", channelName);
         transmit(Command.SUBSCRIBE, headers);
     }
 
+    /**
+     * Adds a listener to a channel.  Must be called while holding the
+     * channelListeners lock.
+     */
+    private void listen(String channelName, Listener listener)
+    {
+        List<Listener> list = channelListeners.get(channelName);
+        if (list == null)
+        {
+            list = new ArrayList<>();
+            channelListeners.put(channelName, list);
+        }
+
+        if (!list.contains(listener))
+            list.add(listener);
+        if (Destinations.isPattern(channelName))
+            patterns.subscribe(channelName, listener, null);
+    }
+
     public void addListener(String channelName, Listener channelListener)
     {
         synchronized (channelListeners)
         {
             if (channelListener != null)
-            {
-                List<Listener> list = channelListeners.get(channelName);
-                if (list == null)
-                {
-                    list = new ArrayList<>();
-                    channelListeners.put(channelName, list);
-                }
-
-                if (!list.contains(channelListener))
-                    list.add(channelListener);
-            }
+                listen(channelName, channelListener);
         }
     }
 
-    private String addReceipt(Map<String, String> header)
+    /**
+     * Adds a receipt header to a frame about to be sent, and returns the
+     * future its receipt will complete.  The future is registered before the
+     * frame goes out, so the receipt cannot arrive unnoticed, and is
+     * forgotten once it completes.
+     */
+    private CompletableFuture<Void> expectReceipt(Map<String, String> header)
     {
-        if (header == null)
-            header = new HashMap<>();
-
-        String receipt = String.valueOf(hashCode() + "&" + System.currentTimeMillis());
+        final String receipt = Integer.toHexString(System.identityHashCode(this)) + "-" + receiptIds.incrementAndGet();
         header.put("receipt", receipt);
-        return receipt;
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        receipts.put(receipt, future);
+        future.whenComplete((v, e) -> receipts.remove(receipt, future));
+        return future;
+    }
+
+    /**
+     * Waits for a receipt on behalf of one of the W methods.
+     */
+    private static void await(CompletableFuture<Void> receipt) throws InterruptedException
+    {
+        try
+        {
+            receipt.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
     }
 
     /**
@@ -289,9 +488,25 @@ public abstract class Stomp
      */
     public void subscribeW(String name, Listener listener, Map<String, String> header) throws InterruptedException
     {
-        String receipt = addReceipt(header);
+        await(subscribeAsync(name, listener, header));
+    }
+
+    /**
+     * Subscribe to a channel, asking the server for a receipt.
+     *
+     * @param name The name of the channel to listen on
+     * @param listener A listener to receive messages sent to the channel
+     * @param header Additional headers to send to the server.
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> subscribeAsync(String name, Listener listener, Map<String, String> header)
+    {
+        if (header == null)
+            header = new Headers();
+
+        CompletableFuture<Void> receipt = expectReceipt(header);
         subscribe(name, listener, header);
-        waitOnReceipt(receipt);
+        return receipt;
     }
 
     /**
@@ -335,6 +550,9 @@ public abstract class Stomp
             if (list != null)
             {
                 list.remove(listener);
+                if (Destinations.isPattern(name))
+                    patterns.unsubscribe(name, listener);
+                forget(listener);
 
                 if (list.isEmpty())
                     unsubscribe(name);
@@ -353,11 +571,20 @@ public abstract class Stomp
     public void unsubscribe(String name, Map<String, String> header)
     {
         if (header == null)
-            header = new HashMap<>();
+            header = new Headers();
 
         synchronized(channelListeners)
         {
-            channelListeners.remove(name);
+            List<Listener> list = channelListeners.remove(name);
+            if (list != null)
+            {
+                for (Listener l : list)
+                {
+                    if (Destinations.isPattern(name))
+                        patterns.unsubscribe(name, l);
+                    forget(l);
+                }
+            }
         }
 
         header.put("destination", name);
@@ -374,7 +601,7 @@ public abstract class Stomp
      */
     public void unsubscribeW(String name) throws InterruptedException
     {
-        unsubscribe(name, (Map<String, String>) null);
+        unsubscribeW(name, null);
     }
 
     /**
@@ -387,9 +614,24 @@ public abstract class Stomp
      */
     public void unsubscribeW(String name, Map<String, String> header) throws InterruptedException
     {
-        String receipt = addReceipt(header);
-        unsubscribe(name, (Map<String, String>) null);
-        waitOnReceipt(receipt);
+        await(unsubscribeAsync(name, header));
+    }
+
+    /**
+     * Unsubscribe from a channel, asking the server for a receipt.
+     *
+     * @param name The name of the channel to unsubscribe from.
+     * @param header Additional headers to send to the server.
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> unsubscribeAsync(String name, Map<String, String> header)
+    {
+        if (header == null)
+            header = new Headers();
+
+        CompletableFuture<Void> receipt = expectReceipt(header);
+        unsubscribe(name, header);
+        return receipt;
     }
 
     /**
@@ -413,9 +655,39 @@ public abstract class Stomp
      */
     public void sendW(String destination, String message, Map<String, String> header) throws InterruptedException
     {
-        String receipt = addReceipt(header);
+        await(sendAsync(destination, message, header));
+    }
+
+    /**
+     * Send a message to a channel, asking the server for a receipt.  Any
+     * number of sends may be waiting for their receipts at once.
+     *
+     * @param destination The name of the channel to send the message to
+     * @param message The message to send.
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> sendAsync(String destination, String message)
+    {
+        return sendAsync(destination, message, null);
+    }
+
+    /**
+     * Send a message to a channel, asking the server for a receipt.  Any
+     * number of sends may be waiting for their receipts at once.
+     *
+     * @param destination The name of the channel to send the message to
+     * @param message The message to send.
+     * @param header Additional headers to send to the server.
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> sendAsync(String destination, String message, Map<String, String> header)
+    {
+        if (header == null)
+            header = new Headers();
+
+        CompletableFuture<Void> receipt = expectReceipt(header);
         send(destination, message, header);
-        waitOnReceipt(receipt);
+        return receipt;
     }
 
     /**
@@ -439,28 +711,89 @@ public abstract class Stomp
     public void send(String dest, String mesg, Map<String, String> header)
     {
         if (header == null)
-            header = new HashMap<>();
+            header = new Headers();
 
         header.put("destination", dest);
         transmit(Command.SEND, header, mesg);
     }
 
     /**
-     * Get the next unconsumed message in the queue. This is non-blocking.
+     * Send a message with a binary body to a channel.  The bytes are sent
+     * as they are, with a content-length header if they hold a NUL, so they
+     * may hold anything.
+     *
+     * @param destination The name of the channel to send the message to
+     * @param message The message to send.
+     */
+    public void send(String destination, byte[] message)
+    {
+        send(destination, message, null);
+    }
+
+    /**
+     * Send a message with a binary body to a channel.
+     *
+     * @param dest The name of the channel to send the message to
+     * @param mesg The message to send. The array must not be changed until
+     *  this returns.
+     * @param header Additional headers to send to the server.
+     */
+    public void send(String dest, byte[] mesg, Map<String, String> header)
+    {
+        if (header == null)
+            header = new Headers();
+
+        header.put("destination", dest);
+        transmit(Command.SEND, header, mesg);
+    }
+
+    /**
+     * Send the remaining bytes of a buffer to a channel.  The buffer's
+     * position is left where it was.
+     *
+     * @param dest The name of the channel to send the message to
+     * @param mesg The message to send.
+     * @param header Additional headers to send to the server.
+     */
+    public void send(String dest, ByteBuffer mesg, Map<String, String> header)
+    {
+        send(dest, Bodies.bytes(mesg), header);
+    }
+
+    /**
+     * Send a message with a binary body to a channel, asking the server
+     * for a receipt.
+     *
+     * @param destination The name of the channel to send the message to
+     * @param message The message to send.
+     * @param header Additional headers to send to the server.
+     * @return a future that completes when the receipt arrives
+     */
+    public CompletableFuture<Void> sendAsync(String destination, byte[] message, Map<String, String> header)
+    {
+        if (header == null)
+            header = new Headers();
+
+        CompletableFuture<Void> receipt = expectReceipt(header);
+        send(destination, message, header);
+        return receipt;
+    }
+
+    /**
+     * Get the oldest unconsumed message in the queue, for any channel.
+     * This is non-blocking.
      *
      * @return the next message in the queue, or null if the queue
      *    contains no messages. This is non-blocking.
      */
     public Message getNext()
     {
-        synchronized(messageQueue)
-        {
-            return messageQueue.pop();
-        }
+        return messageQueue.poll();
     }
 
     /**
-     * Get the next unconsumed message for a particular channel. This is non-blocking.
+     * Get the oldest unconsumed message for a particular channel. This is
+     * non-blocking.
      *
      * @param name the name of the channel to search for
      *
@@ -469,19 +802,49 @@ public abstract class Stomp
      */
     public Message getNext(String name)
     {
-        synchronized(messageQueue)
-        {
-            for (int i = 0; i < messageQueue.size(); i++)
-            {
-                Message message = messageQueue.get(i);
-                if (message.headers().get("destination").equals(name))
-                {
-                    messageQueue.remove(i);
-                    return message;
-                }
-            }
-        }
-        return null;
+        return messageQueue.poll(name);
+    }
+
+    /**
+     * Get the oldest unconsumed message for a particular channel, waiting
+     * for one to arrive if there are none.
+     *
+     * @param name the name of the channel
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     *
+     * @return the next message for the channel, or null if none arrived
+     *    in time.
+     */
+    public Message poll(String name, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return messageQueue.poll(name, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Get the oldest unconsumed message for a particular channel, waiting
+     * for as long as it takes for one to arrive.
+     *
+     * @param name the name of the channel
+     *
+     * @return the next message for the channel
+     */
+    public Message take(String name) throws InterruptedException
+    {
+        return messageQueue.poll(name, -1);
+    }
+
+    /**
+     * Limits how many unconsumed messages are kept for each channel.  When
+     * a message arrives for a channel that has this many waiting, the
+     * oldest of them is dropped.
+     *
+     * @param limit the most messages kept per channel;
+     *    DEFAULT_UNCLAIMED_LIMIT to start with
+     */
+    public void setUnclaimedLimit(int limit)
+    {
+        messageQueue.setLimit(limit);
     }
 
     public void addErrorListener(Listener listener)
@@ -523,15 +886,8 @@ public abstract class Stomp
      */
     public boolean hasReceipt(String receipt_id)
     {
-        synchronized(receipts)
-        {
-            for (String recipt : receipts)
-            {
-                if (recipt.equals(receipt_id))
-                    return true;
-            }
-        }
-        return false;
+        CompletableFuture<Void> receipt = receipts.get(receipt_id);
+        return receipt != null && receipt.isDone() && !receipt.isCompletedExceptionally();
     }
 
     /**
@@ -541,12 +897,7 @@ public abstract class Stomp
      */
     public void clearReceipt(String receipt_id)
     {
-        synchronized(receipts)
-        {
-            for (String recipt : receipts)
-                if (recipt.equals(receipt_id))
-                    receipts.remove(recipt);
-        }
+        receipts.computeIfPresent(receipt_id, (id, receipt) -> receipt.isDone() ? null : receipt);
     }
 
     /**
@@ -554,32 +905,53 @@ public abstract class Stomp
      */
     public void clearReceipts()
     {
-        synchronized(receipts)
-        {
-            receipts.clear();
-        }
+        receipts.values().removeIf(CompletableFuture::isDone);
+    }
+
+    /**
+     * The future for a receipt, whether or not it has arrived yet.
+     */
+    private CompletableFuture<Void> receipt(String receipt_id)
+    {
+        return receipts.computeIfAbsent(receipt_id, id -> new CompletableFuture<>());
     }
 
     public void waitOnReceipt(String receipt_id) throws java.lang.InterruptedException
     {
-        synchronized(receipts)
+        try
+        {
+            receipt(receipt_id).get();
+        }
+        catch (ExecutionException e)
         {
-            while (!hasReceipt(receipt_id))
-            receipts.wait();
+            // Reported as an error
         }
     }
 
     public boolean waitOnReceipt(String receipt_id, long timeout) throws java.lang.InterruptedException
     {
-        synchronized(receipts)
+        try
         {
-            while (!hasReceipt(receipt_id))
-                receipts.wait(timeout);
-
-            return receipts.contains(receipt_id);
+            receipt(receipt_id).get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            return false;
         }
     }
 
+    /**
+     * Fails every receipt still outstanding, for a connection that has gone
+     * away.
+     */
+    protected void failReceipts(String reason)
+    {
+        IllegalStateException e = new IllegalStateException(reason);
+        for (CompletableFuture<Void> receipt : receipts.values())
+            receipt.completeExceptionally(e);
+    }
+
     public boolean isConnected()
     {
         return connected;
@@ -596,36 +968,160 @@ public abstract class Stomp
         }
     }
 
-    public void receive(Command command, Map<String, String> header, String body)
+    /**
+     * The listeners for a destination: those of the channel itself, and
+     * those of any wildcard channel that matches it.  Must be called while
+     * holding the channelListeners lock.
+     *
+     * @return the listeners, or null if there are none
+     */
+    private List<Listener> listeners(String destination)
     {
-        if (command == Command.MESSAGE)
+        List<Listener> listeners = channelListeners.get(destination);
+
+        // Without wildcard channels, the registry holds nothing to look at
+        Subscription[] matching = patterns.subscribers(destination);
+        if (matching.length == 0)
+            return listeners;
+
+        List<Listener> matched = listeners == null ? new ArrayList<>() : new ArrayList<>(listeners);
+        for (Subscription s : matching)
+            if (!matched.contains(s.listener))
+                matched.add(s.listener);
+        return matched;
+    }
+
+    /**
+     * Drops a listener's serial executor once it listens to nothing.  Must
+     * be called while holding the channelListeners lock.
+     */
+    private void forget(Listener listener)
+    {
+        for (List<Listener> list : channelListeners.values())
+            if (list.contains(listener))
+                return;
+        lanes.remove(listener);
+    }
+
+    /**
+     * Hands a message to the listeners of its channel, or keeps it for
+     * getNext() if there are none.
+     */
+    private void message(Message m)
+    {
+        Map<String, String> header = m.headers();
+        String destination = header.get("destination");
+        Listener[] listeners = null;
+        SerialExecutor[] executors = null;
+        synchronized(channelListeners)
+        {
+            List<Listener> list = listeners(destination);
+            if (list == null)
+            {
+                messageQueue.add(m);
+                return;
+            }
+
+            // Called outside the lock, so listeners may subscribe
+            // and unsubscribe
+            listeners = list.toArray(new Listener[list.size()]);
+            Executor executor = listenerExecutor;
+            if (executor != null)
+            {
+                executors = new SerialExecutor[listeners.length];
+                for (int i = 0; i < listeners.length; i++)
+                {
+                    executors[i] = lanes.get(listeners[i]);
+                    if (executors[i] == null)
+                    {
+                        executors[i] = new SerialExecutor(executor);
+                        lanes.put(listeners[i], executors[i]);
+                    }
+                }
+            }
+        }
+
+        final long arrived = System.nanoTime();
+        final long expires = Headers.expires(header);
+        for (int i = 0; i < listeners.length; i++)
         {
-            String destination = header.get("destination");
-            synchronized(channelListeners)
+            final Listener listener = listeners[i];
+            if (executors == null)
+            {
+                try { message(listener, m, header, arrived, expires); }
+                catch (Exception e) { e.printStackTrace(); }
+            }
+            else
             {
-                List<Listener> listeners = channelListeners.get(destination);
-                if (listeners != null)
-                    for (Listener listener : listeners)
-                        try { listener.message(header, body); }
-                        catch (Exception e) { e.printStackTrace(); }
-                else
-                    messageQueue.push(new Message(command, header, body));
+                // Listeners on lanes run at the same time as each other,
+                // and as whoever delivered the message, which may still
+                // be reading the headers; so each gets headers of its own
+                final Map<String, String> h = new Headers(header);
+                executors[i].execute(() ->
+                {
+                    try { message(listener, m, h, arrived, expires); }
+                    catch (Exception e) { e.printStackTrace(); }
+                });
             }
         }
+    }
+
+    /**
+     * Hands a message to a listener, unless it has gone stale.
+     *
+     * @param header The message's headers, or this listener's copy of them
+     * @param arrived When the message arrived, from System.nanoTime()
+     * @param expires When the message expires, or 0 if never
+     */
+    private static void message(Listener listener, Message m, Map<String, String> header, long arrived, long expires)
+    {
+        long timeout = listener.getTimeout();
+        if (timeout > 0 && System.nanoTime() - arrived > TimeUnit.MILLISECONDS.toNanos(timeout))
+            return;
+        if (expires > 0 && System.currentTimeMillis() - expires > listener.getTimeoutThreshold())
+            return;
+
+        if (listener instanceof BinaryListener)
+            ((BinaryListener) listener).message(header, m.bodyBytes());
+        else
+            listener.message(header, m.body());
+    }
+
+    /**
+     * Receives a frame whose body is still bytes.  A message is handed to
+     * BinaryListeners as those bytes, and decoded, once, for the rest.
+     */
+    public void receive(Command command, Map<String, String> header, byte[] body)
+    {
+        if (command == Command.MESSAGE)
+            message(new Message(command, header, body));
+        else
+            receive(command, header, Bodies.text(body));
+    }
+
+    public void receive(Command command, Map<String, String> header, String body)
+    {
+        if (command == Command.MESSAGE)
+        {
+            message(new Message(command, header, body));
+        }
         else if (command == Command.CONNECTED)
         {
             connected = true;
         }
         else if (command == Command.RECEIPT)
         {
-            receipts.add(header.get("receipt-id"));
-            synchronized(receipts)
-            {
-                receipts.notify();
-            }
+            String id = header == null ? null : header.get("receipt-id");
+            if (id != null)
+                receipt(id).complete(null);
         }
         else if (command == Command.ERROR)
         {
+            String id = header == null ? null : header.get("receipt-id");
+            CompletableFuture<Void> receipt = id == null ? null : receipts.get(id);
+            if (receipt != null)
+                receipt.completeExceptionally(new IllegalStateException(body));
+
             if (!errorListeners.isEmpty())
             {
                 synchronized (errorListeners)
@@ -656,7 +1152,7 @@ public abstract class Stomp
                 {
                     try
                     {
-                        listener.message(new HashMap<>(), null);
+                        listener.message(new Headers(), null);
                     }
                     catch (Exception e) { e.printStackTrace(); /* Don't let listeners screw us over by throwing exceptions */ }
                 }
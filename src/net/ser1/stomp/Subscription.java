@@ -0,0 +1,75 @@
+package net.ser1.stomp;
+
+import java.util.ArrayDeque;
+
+/**
+ * One listener's subscription to one destination, as held by the server.
+ *
+ * A subscription made with an "ack" mode of "client" or "client-individual"
+ * and a prefetch window has its messages tracked until the client
+ * acknowledges them.  At most prefetch messages are out with the client at
+ * once; the rest are held here until acknowledgements make room.
+ */
+class Subscription
+{
+    final String   destination;
+    final Listener listener;
+    final String   id;
+
+    /**
+     * True if the listener is a network client that speaks 1.2, so that
+     * its headers are escaped.
+     */
+    final boolean escapes;
+
+    /**
+     * The encoded "subscription" header line for this subscription's id,
+     * or null if the client gave no id.
+     */
+    final byte[] idHeader;
+
+    /**
+     * True if each message acknowledges those delivered before it, as with
+     * an ack mode of "client".
+     */
+    final boolean cumulative;
+
+    /**
+     * The most messages that may be unacknowledged at once, or 0 if
+     * acknowledgements are not tracked.
+     */
+    final int prefetch;
+
+    // Guarded by this
+    int                       unacked;
+    final ArrayDeque<Delivery> held = new ArrayDeque<>();
+
+    Subscription(String destination, Listener listener, String id)
+    {
+        this(destination, listener, id, false, 0);
+    }
+
+    Subscription(String destination, Listener listener, String id, boolean cumulative, int prefetch)
+    {
+        this.destination = destination;
+        this.listener    = listener;
+        this.id          = id;
+        this.escapes     = listener instanceof ServerConnection && ((ServerConnection) listener).escapes();
+        this.idHeader    = id == null ? null : FrameEncoder.header("subscription", id, escapes);
+        this.cumulative  = cumulative;
+        this.prefetch    = prefetch;
+    }
+
+    boolean tracked()
+    {
+        return prefetch > 0;
+    }
+
+    /**
+     * Tests whether the client has room in its window for another message.
+     */
+    synchronized boolean ready()
+    {
+        return prefetch == 0 || (unacked < prefetch && held.isEmpty());
+    }
+}
@@ -0,0 +1,440 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The server's table of who is subscribed to what.
+ *
+ * Each destination maps to an array of subscriptions that is never changed
+ * once published; subscribing and unsubscribing swap in a new copy.  Looking
+ * up the subscribers of a destination is therefore a single map read, with
+ * no locking and no allocation, and the caller can deliver to the snapshot
+ * it got for as long as it likes without holding anything up.  Changes to
+ * one destination only contend with changes to the same destination.
+ *
+ * Wildcard subscriptions (see Destinations) live in a trie keyed by
+ * destination segment, so resolving them costs time proportional to the
+ * depth of the destination rather than to the number of subscriptions.
+ * Nodes are unlinked again once nothing below them is subscribed.  The
+ * resolved set for each published destination is cached, so publishing to
+ * a hot destination stays a couple of map reads.  A cached set is checked
+ * against the destination's own array, so exact subscriptions come and go
+ * without disturbing any other destination's entry; but a change to any
+ * wildcard subscription invalidates every entry, so a server whose
+ * clients keep making and dropping wildcard subscriptions resolves each
+ * destination afresh after every such change.  While there are no
+ * wildcard subscriptions at all, the trie and cache are not consulted.
+ *
+ * A listener gets one copy of a message however many of its subscriptions
+ * match, for the most specific of them.  An exact subscription comes
+ * first; patterns are compared segment by segment from the start, where a
+ * literal segment beats "*", which beats a "#" or ">" ending the pattern
+ * there.  That subscription's id is the one the client sees.
+ */
+class SubscriptionRegistry
+{
+    static final Subscription[] NONE = new Subscription[0];
+
+    /**
+     * The cache is cleared rather than allowed to grow past this many
+     * destinations.
+     */
+    private static final int MAX_CACHED = 65536;
+
+    private final ConcurrentHashMap<String, Subscription[]> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * The destinations each listener is subscribed to, so that a listener
+     * can be dropped without looking at every destination.
+     */
+    private final ConcurrentHashMap<Listener, Set<String>> byListener = new ConcurrentHashMap<>();
+
+    private final Node root = new Node();
+    private volatile int  patterns = 0;
+
+    /**
+     * Bumped by every change to a wildcard subscription; cached resolutions
+     * from an older version are ignored.
+     */
+    private final AtomicInteger version = new AtomicInteger();
+    private final ConcurrentHashMap<String, Resolved> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * One level of the wildcard trie.  Only changed while holding the root's
+     * lock; read without locking.
+     */
+    private static final class Node
+    {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile Node anyOne;
+
+        /**
+         * Subscriptions whose pattern ends at this node.
+         */
+        volatile Subscription[] here = NONE;
+
+        /**
+         * Subscriptions whose pattern ends with "#" or ">" below this node.
+         */
+        volatile Subscription[] rest = NONE;
+
+        boolean isEmpty()
+        {
+            return here.length == 0 && rest.length == 0 && anyOne == null && children.isEmpty();
+        }
+    }
+
+    private static final class Resolved
+    {
+        final int            version;
+        final Subscription[] exact;
+        final Subscription[] subscribers;
+
+        /**
+         * @param exact The destination's own subscriptions the set was
+         *  resolved from; any change replaces the array
+         */
+        Resolved(int version, Subscription[] exact, Subscription[] subscribers)
+        {
+            this.version     = version;
+            this.exact       = exact;
+            this.subscribers = subscribers;
+        }
+    }
+
+    /**
+     * The current subscribers of a destination, including wildcard
+     * subscriptions that match it.  The array must not be modified.
+     */
+    Subscription[] subscribers(String destination)
+    {
+        if (destination == null)
+            return NONE;
+
+        Subscription[] exact = exact(destination);
+        if (patterns == 0)
+            return exact;
+
+        int v = version.get();
+        Resolved r = resolved.get(destination);
+        if (r != null && r.version == v && r.exact == exact)
+            return r.subscribers;
+
+        List<Subscription> matched = new ArrayList<>();
+        matched.addAll(Arrays.asList(exact));
+        match(root, Destinations.segments(destination), 0, matched);
+
+        // A listener matched by several subscriptions still gets one copy,
+        // for the first, most specific, of them; its own subscriptions sort
+        // out which listeners to hand it to.
+        Set<Listener> seen = Collections.newSetFromMap(new IdentityHashMap<Listener, Boolean>());
+        for (Iterator<Subscription> i = matched.iterator(); i.hasNext(); )
+            if (!seen.add(i.next().listener))
+                i.remove();
+
+        Subscription[] s = matched.isEmpty() ? NONE : matched.toArray(new Subscription[matched.size()]);
+        if (resolved.size() >= MAX_CACHED)
+            resolved.clear();
+        resolved.put(destination, new Resolved(v, exact, s));
+        return s;
+    }
+
+    private Subscription[] exact(String destination)
+    {
+        Subscription[] s = destinations.get(destination);
+        return s == null ? NONE : s;
+    }
+
+    /**
+     * Adds the pattern subscriptions that match a destination, most
+     * specific first: at each segment, a literal match before "*", and
+     * both before a "#" or ">" that ends there.
+     */
+    private static void match(Node node, String[] segments, int depth, List<Subscription> matched)
+    {
+        if (depth == segments.length)
+        {
+            matched.addAll(Arrays.asList(node.here));
+            return;
+        }
+
+        Node next = node.children.get(segments[depth]);
+        if (next != null)
+            match(next, segments, depth + 1, matched);
+
+        next = node.anyOne;
+        if (next != null)
+            match(next, segments, depth + 1, matched);
+
+        matched.addAll(Arrays.asList(node.rest));
+    }
+
+    /**
+     * Subscribes a listener to a destination, which may be a wildcard
+     * pattern.  A listener is only ever subscribed once to the same
+     * destination.
+     *
+     * @return true if the listener was not already subscribed
+     */
+    boolean subscribe(String destination, Listener listener, String id)
+    {
+        return subscribe(new Subscription(destination, listener, id));
+    }
+
+    /**
+     * Adds a subscription, unless its listener is already subscribed to the
+     * same destination.
+     *
+     * @return true if the subscription was added
+     */
+    boolean subscribe(Subscription added)
+    {
+        String   destination = added.destination;
+        Listener listener    = added.listener;
+        boolean  changed;
+
+        if (Destinations.isPattern(destination))
+        {
+            synchronized (root)
+            {
+                Node node = root;
+                String[] segments = Destinations.segments(destination);
+                int last = segments.length - 1;
+                boolean rest = Destinations.isAnyRest(segments[last]);
+
+                for (int i = 0; i < (rest ? last : segments.length); i++)
+                {
+                    if (Destinations.isAnyOne(segments[i]))
+                    {
+                        if (node.anyOne == null)
+                            node.anyOne = new Node();
+                        node = node.anyOne;
+                    }
+                    else
+                    {
+                        node = node.children.computeIfAbsent(segments[i], s -> new Node());
+                    }
+                }
+
+                Subscription[] current = rest ? node.rest : node.here;
+                changed = indexOf(current, listener) < 0;
+                if (changed)
+                {
+                    Subscription[] copy = Arrays.copyOf(current, current.length + 1);
+                    copy[current.length] = added;
+                    if (rest)
+                        node.rest = copy;
+                    else
+                        node.here = copy;
+                    patterns++;
+                    version.incrementAndGet();
+                }
+            }
+        }
+        else
+        {
+            final boolean[] flag = new boolean[1];
+            destinations.compute(destination, (d, current) ->
+            {
+                if (current == null)
+                {
+                    flag[0] = true;
+                    return new Subscription[] { added };
+                }
+
+                if (indexOf(current, listener) >= 0)
+                    return current;
+
+                Subscription[] copy = Arrays.copyOf(current, current.length + 1);
+                copy[current.length] = added;
+                flag[0] = true;
+                return copy;
+            });
+            changed = flag[0];
+        }
+
+        if (changed)
+        {
+            byListener.computeIfAbsent(listener, l -> Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()))
+                      .add(destination);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Unsubscribes a listener from a destination.
+     */
+    void unsubscribe(String destination, Listener listener)
+    {
+        if (destination == null)
+            return;
+
+        remove(destination, listener);
+
+        Set<String> subscribed = byListener.get(listener);
+        if (subscribed != null)
+            subscribed.remove(destination);
+    }
+
+    /**
+     * Unsubscribes a listener from whichever destination it subscribed to
+     * with the given id.
+     */
+    void unsubscribeId(String id, Listener listener)
+    {
+        Set<String> subscribed = byListener.get(listener);
+        if (subscribed == null || id == null)
+            return;
+
+        for (String destination : subscribed)
+            for (Subscription s : find(destination))
+                if (s.listener == listener && id.equals(s.id))
+                    unsubscribe(destination, listener);
+    }
+
+    /**
+     * Unsubscribes a listener from everything.
+     */
+    void unsubscribeAll(Listener listener)
+    {
+        Set<String> subscribed = byListener.remove(listener);
+        if (subscribed == null)
+            return;
+
+        for (String destination : subscribed)
+            remove(destination, listener);
+    }
+
+    /**
+     * The subscriptions made to exactly this destination or pattern.
+     */
+    private Subscription[] find(String destination)
+    {
+        if (!Destinations.isPattern(destination))
+            return exact(destination);
+
+        Node node = node(destination);
+        if (node == null)
+            return NONE;
+
+        String[] segments = Destinations.segments(destination);
+        return Destinations.isAnyRest(segments[segments.length - 1]) ? node.rest : node.here;
+    }
+
+    /**
+     * The trie node holding a pattern's subscriptions, or null.
+     */
+    private Node node(String pattern)
+    {
+        String[] segments = Destinations.segments(pattern);
+        int last = segments.length - 1;
+        boolean rest = Destinations.isAnyRest(segments[last]);
+
+        Node node = root;
+        for (int i = 0; node != null && i < (rest ? last : segments.length); i++)
+            node = Destinations.isAnyOne(segments[i]) ? node.anyOne : node.children.get(segments[i]);
+
+        return node;
+    }
+
+    private void remove(String destination, Listener listener)
+    {
+        if (Destinations.isPattern(destination))
+        {
+            synchronized (root)
+            {
+                Node node = node(destination);
+                if (node == null)
+                    return;
+
+                String[] segments = Destinations.segments(destination);
+                boolean rest = Destinations.isAnyRest(segments[segments.length - 1]);
+
+                Subscription[] current = rest ? node.rest : node.here;
+                Subscription[] remaining = without(current, listener);
+                if (remaining == current)
+                    return;
+
+                if (remaining == null)
+                    remaining = NONE;
+                if (rest)
+                    node.rest = remaining;
+                else
+                    node.here = remaining;
+                patterns--;
+                version.incrementAndGet();
+
+                if (remaining == NONE)
+                    prune(segments, rest ? segments.length - 1 : segments.length);
+            }
+        }
+        else
+        {
+            destinations.computeIfPresent(destination, (d, current) -> without(current, listener));
+        }
+    }
+
+    /**
+     * Unlinks the nodes along a pattern's path that no longer hold anything,
+     * from the deepest back towards the root, so that patterns nobody uses
+     * any more do not stay in the trie.  Called holding the root's lock;
+     * a lookup already inside an unlinked node just finds nothing there.
+     *
+     * @param depth The number of segments leading to the pattern's node
+     */
+    private void prune(String[] segments, int depth)
+    {
+        Node[] path = new Node[depth + 1];
+        path[0] = root;
+        for (int i = 0; i < depth; i++)
+        {
+            path[i + 1] = Destinations.isAnyOne(segments[i]) ? path[i].anyOne : path[i].children.get(segments[i]);
+            if (path[i + 1] == null)
+                return;
+        }
+
+        for (int i = depth; i > 0 && path[i].isEmpty(); i--)
+        {
+            if (Destinations.isAnyOne(segments[i - 1]))
+                path[i - 1].anyOne = null;
+            else
+                path[i - 1].children.remove(segments[i - 1]);
+        }
+    }
+
+    private static int indexOf(Subscription[] subscriptions, Listener listener)
+    {
+        for (int i = 0; i < subscriptions.length; i++)
+            if (subscriptions[i].listener == listener)
+                return i;
+        return -1;
+    }
+
+    /**
+     * A copy of the array without the listener's subscription, or null,
+     * which drops the destination, if nothing is left.
+     */
+    private static Subscription[] without(Subscription[] current, Listener listener)
+    {
+        int i = indexOf(current, listener);
+        if (i < 0)
+            return current;
+
+        if (current.length == 1)
+            return null;
+
+        Subscription[] copy = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, copy, 0, i);
+        System.arraycopy(current, i + 1, copy, i, current.length - i - 1);
+        return copy;
+    }
+}
@@ -0,0 +1,169 @@
+package net.ser1.stomp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel: one thread that runs tasks after a delay, for any
+ * number of connections.
+ *
+ * Time is cut into ticks, and the wheel is a ring of buckets, one per tick.
+ * A task goes into the bucket its deadline falls in, along with the number
+ * of whole turns of the wheel still to go, so scheduling and cancelling
+ * cost the same however many tasks are waiting, and each tick only looks
+ * at one bucket.  Tasks run on the wheel's thread, so they must be quick.
+ * Deadlines are only as precise as a tick.
+ *
+ * The wheel also keeps a coarse clock, updated every tick, that is cheaper
+ * to read than System.currentTimeMillis().
+ */
+class TimerWheel implements Runnable
+{
+    private static final long TICK  = 100;
+    private static final int  SLOTS = 512;
+
+    private static TimerWheel shared;
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout
+    {
+        private final Runnable task;
+        private final long     ticks;
+        private long           rounds;
+        private Timeout        next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long ticks)
+        {
+            this.task  = task;
+            this.ticks = ticks;
+        }
+
+        /**
+         * Stops the task from running, if it has not already.
+         */
+        void cancel()
+        {
+            cancelled = true;
+        }
+    }
+
+    private final Timeout[]      wheel   = new Timeout[SLOTS];
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private long                 tick;
+    private volatile long        now     = System.currentTimeMillis();
+
+    /**
+     * The wheel shared by every server and client in the VM, started the
+     * first time it is needed.
+     */
+    static synchronized TimerWheel shared()
+    {
+        if (shared == null)
+        {
+            shared = new TimerWheel();
+            Thread t = new Thread(shared, "Stomp-Timer");
+            t.setDaemon(true);
+            t.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Runs a task once the delay has passed.
+     */
+    Timeout schedule(Runnable task, long delay)
+    {
+        Timeout t = new Timeout(task, Math.max(1, (delay + TICK - 1) / TICK));
+        pending.add(t);
+        return t;
+    }
+
+    /**
+     * The time in milliseconds, as of the last tick.
+     */
+    long now()
+    {
+        return now;
+    }
+
+    public void run()
+    {
+        long next = System.currentTimeMillis() + TICK;
+        while (true)
+        {
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+            next += TICK;
+            now = System.currentTimeMillis();
+
+            // Only this thread touches the buckets
+            Timeout t;
+            while ((t = pending.poll()) != null)
+            {
+                if (t.cancelled)
+                    continue;
+
+                int slot = (int) ((tick + t.ticks) % SLOTS);
+                t.rounds = (t.ticks - 1) / SLOTS;
+                t.next = wheel[slot];
+                wheel[slot] = t;
+            }
+
+            tick++;
+            expire((int) (tick % SLOTS));
+        }
+    }
+
+    /**
+     * Runs the tasks in a bucket that are due this turn of the wheel.
+     */
+    private void expire(int slot)
+    {
+        Timeout kept = null;
+        Timeout t = wheel[slot];
+        wheel[slot] = null;
+
+        while (t != null)
+        {
+            Timeout next = t.next;
+            if (t.cancelled)
+            {
+                // Dropped
+            }
+            else if (t.rounds > 0)
+            {
+                t.rounds--;
+                t.next = kept;
+                kept = t;
+            }
+            else
+            {
+                try
+                {
+                    t.task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace(System.err);
+                }
+            }
+            t = next;
+        }
+
+        // Tasks scheduled by tasks wait in pending until the next tick
+        wheel[slot] = kept;
+    }
+}
@@ -0,0 +1,266 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages that arrived for channels with no listener, waiting for somebody
+ * to ask for them.
+ *
+ * Each message is linked into two lists at once: the queue of its own
+ * destination, and the list of all messages in the order they arrived.
+ * Taking the oldest message for a destination, or the oldest of all, takes
+ * the head of one list and unlinks the message from the other, so both
+ * cost the same however many messages and destinations are waiting.
+ *
+ * Each destination holds at most a limited number of messages; when a new
+ * one arrives for a full destination, its oldest is dropped, so a channel
+ * nobody reads cannot hold up the thread receiving messages, or use up the
+ * heap.
+ */
+class UnclaimedMessages
+{
+    /**
+     * A waiting message.
+     */
+    private static final class Entry
+    {
+        final Message     message;
+        final Destination destination;
+        Entry             next;       // In the destination's queue
+        Entry             newer;      // In arrival order
+        Entry             older;
+
+        Entry(Message message, Destination destination)
+        {
+            this.message     = message;
+            this.destination = destination;
+        }
+    }
+
+    /**
+     * The queue of one destination, and the consumers waiting on it.
+     */
+    private static final class Destination
+    {
+        final String    name;
+        final Condition arrived;
+        Entry           head;
+        Entry           tail;
+        int             size;
+        int             waiting;
+
+        Destination(String name, Condition arrived)
+        {
+            this.name    = name;
+            this.arrived = arrived;
+        }
+    }
+
+    private final ReentrantLock            lock         = new ReentrantLock();
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private Entry                          oldest;
+    private Entry                          newest;
+    private int                            limit;
+
+    /**
+     * @param limit The most messages kept for any one destination
+     */
+    UnclaimedMessages(int limit)
+    {
+        setLimit(limit);
+    }
+
+    void setLimit(int limit)
+    {
+        if (limit <= 0)
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+
+        lock.lock();
+        try
+        {
+            this.limit = limit;
+            for (Destination d : new ArrayList<>(destinations.values()))
+                while (d.size > limit)
+                    remove(d.head);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void add(Message message)
+    {
+        String name = message.headers().get("destination");
+
+        lock.lock();
+        try
+        {
+            Destination d = destination(name);
+            if (d.size == limit)
+                remove(d.head);
+
+            Entry e = new Entry(message, d);
+            if (d.tail == null)
+                d.head = e;
+            else
+                d.tail.next = e;
+            d.tail = e;
+            d.size++;
+
+            e.older = newest;
+            if (newest == null)
+                oldest = e;
+            else
+                newest.newer = e;
+            newest = e;
+
+            if (d.waiting > 0)
+                d.arrived.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest message for any destination.
+     *
+     * @return the message, or null if there are none
+     */
+    Message poll()
+    {
+        lock.lock();
+        try
+        {
+            Entry e = oldest;
+            if (e == null)
+                return null;
+
+            remove(e);
+            return e.message;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest message for a destination.
+     *
+     * @return the message, or null if there are none
+     */
+    Message poll(String name)
+    {
+        lock.lock();
+        try
+        {
+            Destination d = destinations.get(name);
+            if (d == null || d.head == null)
+                return null;
+
+            Entry e = d.head;
+            remove(e);
+            return e.message;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest message for a destination, waiting for one to
+     * arrive if there are none.
+     *
+     * @param timeout How long to wait, in nanoseconds, or a negative number
+     *  to wait for as long as it takes
+     * @return the message, or null if none arrived in time
+     */
+    Message poll(String name, long timeout) throws InterruptedException
+    {
+        boolean forever = timeout < 0;
+
+        lock.lockInterruptibly();
+        try
+        {
+            Destination d = destination(name);
+            d.waiting++;
+            try
+            {
+                while (d.head == null)
+                {
+                    if (forever)
+                        d.arrived.await();
+                    else if (timeout <= 0)
+                        return null;
+                    else
+                        timeout = d.arrived.awaitNanos(timeout);
+                }
+            }
+            finally
+            {
+                d.waiting--;
+                if (d.head == null && d.waiting == 0)
+                    destinations.remove(name);
+            }
+
+            Entry e = d.head;
+            remove(e);
+            return e.message;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The queue for a destination, created if need be.  Must be called
+     * while holding the lock.
+     */
+    private Destination destination(String name)
+    {
+        Destination d = destinations.get(name);
+        if (d == null)
+        {
+            d = new Destination(name, lock.newCondition());
+            destinations.put(name, d);
+        }
+        return d;
+    }
+
+    /**
+     * Unlinks a message, which must be the oldest for its destination, from
+     * both lists.  Must be called while holding the lock.
+     */
+    private void remove(Entry e)
+    {
+        Destination d = e.destination;
+        d.head = e.next;
+        if (d.head == null)
+        {
+            d.tail = null;
+            if (d.waiting == 0)
+                destinations.remove(d.name);
+        }
+        d.size--;
+
+        if (e.older == null)
+            oldest = e.newer;
+        else
+            e.older.newer = e.newer;
+        if (e.newer == null)
+            newest = e.older;
+        else
+            e.newer.older = e.older;
+
+        e.next = e.newer = e.older = null;
+    }
+}
@@ -0,0 +1,76 @@
+package net.ser1.stomp;
+
+/**
+ * The versions of the Stomp protocol spoken here, and what they mean for
+ * the bytes of a frame.
+ *
+ * 1.0 writes header names and values as they are.  1.2 escapes CR, LF,
+ * ':' and '\' in them, as "\r", "\n", "\c" and "\\", in every frame but
+ * CONNECT, STOMP and CONNECTED, and leaves the whitespace around them
+ * alone.  1.1 escapes all of those but CR; that difference is not worth a
+ * third encoding of every published message, so 1.1 is not offered.
+ */
+final class Versions
+{
+    private Versions()
+    {
+    }
+
+    /**
+     * The versions spoken, most preferred first.
+     */
+    static final String[] SUPPORTED = { "1.2", "1.0" };
+
+    /**
+     * The accept-version header a client sends.
+     */
+    static final String ACCEPT = "1.0,1.2";
+
+    /**
+     * Picks the version to speak with a client: the highest of those in
+     * its accept-version header that are also spoken here.  A client that
+     * sends no accept-version speaks 1.0.
+     *
+     * @return the version, or null if there is none in common
+     */
+    static String negotiate(String accepted)
+    {
+        if (accepted == null)
+            return "1.0";
+
+        for (String v : SUPPORTED)
+            for (String a : accepted.split(","))
+                if (v.equals(a.trim()))
+                    return v;
+        return null;
+    }
+
+    /**
+     * Tests whether frames are escaped in a version, as given by a
+     * CONNECTED frame's version header.  A server that sends none speaks
+     * 1.0.
+     */
+    static boolean escapes(String version)
+    {
+        return version != null && !"1.0".equals(version.trim());
+    }
+
+    /**
+     * Tests whether a version has heart-beats, as given by a CONNECTED
+     * frame's version header.  They came with 1.1, as escaping did, but
+     * are a separate feature of the version.
+     */
+    static boolean heartBeats(String version)
+    {
+        return version != null && !"1.0".equals(version.trim());
+    }
+
+    /**
+     * Tests whether a command's headers are escaped in a version that
+     * escapes any.  The frames that negotiate the version never are.
+     */
+    static boolean escapes(Command command)
+    {
+        return command != Command.CONNECT && command != Command.STOMP && command != Command.CONNECTED;
+    }
+}